@@ -0,0 +1,11 @@
+// Visitor interface for visitors whose results arrive later,
+// for example after a lookup in another system.
+
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncVisitor<K,V> {
+
+    // Given a key and a value, returns a future for a suitable value.
+
+    public CompletableFuture<V> visit (K k, V v);
+}
@@ -0,0 +1,435 @@
+// A persistent B-tree, made by FMap.emptyBTreeMap.
+//
+// Each node holds up to fanout - 1 entries in sorted arrays and, unless
+// it is a leaf, one more child than entries; every node but the root
+// holds at least ceil(fanout / 2) - 1 entries and all leaves are at the
+// same depth.  A lookup reads about log(n) / log(fanout / 2) nodes
+// instead of the 2 lg n of a red-black tree, and the arrays take less
+// space per entry than a Node object each.
+//
+// add and remove copy the nodes on the path they change and share the
+// rest, as FTree does.  A child may come back from them with one entry
+// too many or too few; its parent then splits it, or refills it from a
+// sibling or merges it with one.
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class BTreeFMap<K, V> extends FMap<K, V> {
+
+	static final int DEFAULT_FANOUT = 32;
+
+	BNode root;
+	int size;
+	int fanout;
+	Comparator<? super K> c;
+
+	BTreeFMap(Comparator<? super K> c, int fanout, BNode root, int size){
+		if (fanout < 3)
+			throw new IllegalArgumentException("fanout must be at least 3");
+		this.c = c;
+		this.fanout = fanout;
+		this.root = root;
+		this.size = size;
+	}
+
+	// a B-tree node; children is null in a leaf
+	static class BNode {
+		Object[] keys;
+		Object[] values;
+		BNode[] children;
+
+		BNode(Object[] keys, Object[] values, BNode[] children){
+			this.keys = keys;
+			this.values = values;
+			this.children = children;
+		}
+
+		boolean isLeaf(){
+			return children == null;
+		}
+	}
+
+	int maxKeys(){
+		return fanout - 1;
+	}
+
+	int minKeys(){
+		return (fanout + 1) / 2 - 1;
+	}
+
+	// the index of key in n, or -(insertion point) - 1
+	int search(BNode n, K key){
+		int lo = 0;
+		int hi = n.keys.length;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int cmp = c.compare((K) n.keys[mid], key);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid;
+			else
+				return mid;
+		}
+		return -lo - 1;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// the number of nodes on a path from the root to a leaf
+	public int height(){
+		int h = 0;
+		for (BNode n = root; n != null; n = n.isLeaf() ? null : n.children[0])
+			h = h + 1;
+		return h;
+	}
+
+	public boolean containsKey(K key) {
+		BNode n = root;
+		while (n != null){
+			int i = search(n, key);
+			if (i >= 0)
+				return true;
+			n = n.isLeaf() ? null : n.children[-i - 1];
+		}
+		return false;
+	}
+
+	public V get(K key) {
+		BNode n = root;
+		while (n != null){
+			int i = search(n, key);
+			if (i >= 0)
+				return (V) n.values[i];
+			n = n.isLeaf() ? null : n.children[-i - 1];
+		}
+		throw new IllegalArgumentException();
+	}
+
+	public String toString() {
+		return "{...(" + this.size() + " entries)...}";
+	}
+
+	////////////////////////////////////////////////////////////////
+	// array helpers; each returns a new array
+
+	static Object[] inserted(Object[] a, int i, Object x){
+		Object[] b = new Object[a.length + 1];
+		System.arraycopy(a, 0, b, 0, i);
+		b[i] = x;
+		System.arraycopy(a, i, b, i + 1, a.length - i);
+		return b;
+	}
+
+	static Object[] removed(Object[] a, int i){
+		Object[] b = new Object[a.length - 1];
+		System.arraycopy(a, 0, b, 0, i);
+		System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+		return b;
+	}
+
+	static Object[] replaced(Object[] a, int i, Object x){
+		Object[] b = a.clone();
+		b[i] = x;
+		return b;
+	}
+
+	static Object[] range(Object[] a, int from, int to){
+		Object[] b = new Object[to - from];
+		System.arraycopy(a, from, b, 0, to - from);
+		return b;
+	}
+
+	static BNode[] childRange(BNode[] a, int from, int to){
+		BNode[] b = new BNode[to - from];
+		System.arraycopy(a, from, b, 0, to - from);
+		return b;
+	}
+
+	static Object[] concat(Object[] a, Object x, Object[] b){
+		Object[] r = new Object[a.length + 1 + b.length];
+		System.arraycopy(a, 0, r, 0, a.length);
+		r[a.length] = x;
+		System.arraycopy(b, 0, r, a.length + 1, b.length);
+		return r;
+	}
+
+	static BNode[] concatChildren(BNode[] a, BNode[] b){
+		if (a == null)
+			return null;
+		BNode[] r = new BNode[a.length + b.length];
+		System.arraycopy(a, 0, r, 0, a.length);
+		System.arraycopy(b, 0, r, a.length, b.length);
+		return r;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// add
+
+	@Override
+	public BTreeFMap<K, V> add(K key, V value){
+		int newSize = size;
+		if (!(this.containsKey(key)))
+			newSize = size + 1;
+		BNode r;
+		if (root == null)
+			r = new BNode(new Object[] {key}, new Object[] {value}, null);
+		else {
+			r = insert(root, key, value);
+			if (r.keys.length > maxKeys()){
+				int mid = r.keys.length / 2;
+				BNode[] halves = split(r, mid);
+				r = new BNode(new Object[] {r.keys[mid]}, 
+						new Object[] {r.values[mid]}, halves);
+			}
+		}
+		return new BTreeFMap<K, V>(c, fanout, r, newSize);
+	}
+
+	// returns n with (key, value) added below it; the result may hold
+	// one entry more than maxKeys
+	BNode insert(BNode n, K key, V value){
+		int i = search(n, key);
+		if (i >= 0){
+			if (n.values[i] == value)
+				return n;
+			return new BNode(n.keys, replaced(n.values, i, value), n.children);
+		}
+		i = -i - 1;
+		if (n.isLeaf())
+			return new BNode(inserted(n.keys, i, key), 
+					inserted(n.values, i, value), null);
+		BNode child = insert(n.children[i], key, value);
+		if (child == n.children[i])
+			return n;
+		if (child.keys.length <= maxKeys()){
+			BNode[] children = n.children.clone();
+			children[i] = child;
+			return new BNode(n.keys, n.values, children);
+		}
+		// split the child around its middle entry, which moves up
+		int mid = child.keys.length / 2;
+		BNode[] halves = split(child, mid);
+		BNode[] children = new BNode[n.children.length + 1];
+		System.arraycopy(n.children, 0, children, 0, i);
+		children[i] = halves[0];
+		children[i + 1] = halves[1];
+		System.arraycopy(n.children, i + 1, children, i + 2, 
+				n.children.length - i - 1);
+		return new BNode(inserted(n.keys, i, child.keys[mid]),
+				inserted(n.values, i, child.values[mid]), children);
+	}
+
+	// the parts of n before and after entry mid
+	static BNode[] split(BNode n, int mid){
+		int len = n.keys.length;
+		BNode left = new BNode(range(n.keys, 0, mid), range(n.values, 0, mid),
+				n.isLeaf() ? null : childRange(n.children, 0, mid + 1));
+		BNode right = new BNode(range(n.keys, mid + 1, len), 
+				range(n.values, mid + 1, len),
+				n.isLeaf() ? null : childRange(n.children, mid + 1, len + 1));
+		return new BNode[] {left, right};
+	}
+
+	////////////////////////////////////////////////////////////////
+	// remove
+
+	@Override
+	public BTreeFMap<K, V> remove(K key){
+		if (!(this.containsKey(key)))
+			return this;
+		BNode r = remove(root, key);
+		if (r.keys.length == 0)
+			r = r.isLeaf() ? null : r.children[0];
+		return new BTreeFMap<K, V>(c, fanout, r, size - 1);
+	}
+
+	// returns n without key, which must be below it; the result may
+	// hold one entry less than minKeys
+	BNode remove(BNode n, K key){
+		int i = search(n, key);
+		if (n.isLeaf())
+			return new BNode(removed(n.keys, i), removed(n.values, i), null);
+		if (i >= 0){
+			// replace the entry with the largest one before it
+			Object[] last = new Object[2];
+			BNode child = removeLast(n.children[i], last);
+			BNode[] children = n.children.clone();
+			children[i] = child;
+			return refill(new BNode(replaced(n.keys, i, last[0]), 
+					replaced(n.values, i, last[1]), children), i);
+		}
+		i = -i - 1;
+		BNode[] children = n.children.clone();
+		children[i] = remove(n.children[i], key);
+		return refill(new BNode(n.keys, n.values, children), i);
+	}
+
+	// returns n without its largest entry, which is put in last
+	BNode removeLast(BNode n, Object[] last){
+		int end = n.keys.length;
+		if (n.isLeaf()){
+			last[0] = n.keys[end - 1];
+			last[1] = n.values[end - 1];
+			return new BNode(range(n.keys, 0, end - 1), 
+					range(n.values, 0, end - 1), null);
+		}
+		BNode[] children = n.children.clone();
+		children[end] = removeLast(n.children[end], last);
+		return refill(new BNode(n.keys, n.values, children), end);
+	}
+
+	// if child i of n, a new node, has too few entries, moves one in
+	// from a sibling through n, or merges it with a sibling
+	BNode refill(BNode n, int i){
+		BNode child = n.children[i];
+		if (child.keys.length >= minKeys())
+			return n;
+		BNode[] children = n.children.clone();
+		if (i > 0 && n.children[i - 1].keys.length > minKeys()){
+			// rotate the left sibling's last entry through n
+			BNode left = n.children[i - 1];
+			int end = left.keys.length;
+			children[i - 1] = new BNode(range(left.keys, 0, end - 1), 
+					range(left.values, 0, end - 1),
+					left.isLeaf() ? null : childRange(left.children, 0, end));
+			children[i] = new BNode(inserted(child.keys, 0, n.keys[i - 1]),
+					inserted(child.values, 0, n.values[i - 1]),
+					child.isLeaf() ? null : concatChildren(
+							new BNode[] {left.children[end]}, child.children));
+			return new BNode(replaced(n.keys, i - 1, left.keys[end - 1]),
+					replaced(n.values, i - 1, left.values[end - 1]), children);
+		}
+		if (i < n.keys.length && n.children[i + 1].keys.length > minKeys()){
+			// rotate the right sibling's first entry through n
+			BNode right = n.children[i + 1];
+			int end = right.keys.length;
+			children[i] = new BNode(
+					inserted(child.keys, child.keys.length, n.keys[i]),
+					inserted(child.values, child.values.length, n.values[i]),
+					child.isLeaf() ? null : concatChildren(
+							child.children, new BNode[] {right.children[0]}));
+			children[i + 1] = new BNode(range(right.keys, 1, end), 
+					range(right.values, 1, end),
+					right.isLeaf() ? null : childRange(right.children, 1, end + 1));
+			return new BNode(replaced(n.keys, i, right.keys[0]),
+					replaced(n.values, i, right.values[0]), children);
+		}
+		// merge with a sibling and the entry between them
+		int j = i > 0 ? i - 1 : i;
+		BNode a = n.children[j];
+		BNode b = n.children[j + 1];
+		BNode merged = new BNode(concat(a.keys, n.keys[j], b.keys),
+				concat(a.values, n.values[j], b.values),
+				concatChildren(a.children, b.children));
+		BNode[] fewer = new BNode[children.length - 1];
+		System.arraycopy(children, 0, fewer, 0, j);
+		fewer[j] = merged;
+		System.arraycopy(children, j + 2, fewer, j + 1, children.length - j - 2);
+		return new BNode(removed(n.keys, j), removed(n.values, j), fewer);
+	}
+
+	////////////////////////////////////////////////////////////////
+	// visitors and iteration
+
+	// nodes whose values all come back unchanged are shared with
+	// this map
+	@Override
+	public BTreeFMap<K, V> accept(Visitor<K, V> avisitor) {
+		if (root == null)
+			return this;
+		BNode r = accept(root, avisitor);
+		if (r == root)
+			return this;
+		return new BTreeFMap<K, V>(c, fanout, r, size);
+	}
+
+	BNode accept(BNode n, Visitor<K, V> avisitor){
+		boolean same = true;
+		BNode[] children = null;
+		if (!n.isLeaf()){
+			children = new BNode[n.children.length];
+			for (int i = 0; i < children.length; i = i + 1){
+				children[i] = accept(n.children[i], avisitor);
+				same = same && children[i] == n.children[i];
+			}
+		}
+		Object[] values = new Object[n.values.length];
+		for (int i = 0; i < values.length; i = i + 1){
+			values[i] = avisitor.visit((K) n.keys[i], (V) n.values[i]);
+			same = same && values[i] == n.values[i];
+		}
+		if (same)
+			return n;
+		return new BNode(n.keys, values, children);
+	}
+
+	// the keys in ascending order
+	@Override
+	public Iterator<K> iterator() {
+		return new Iterator<K>(){
+			// the path to the next entry: the nodes and, in each, the
+			// index of the next entry to return
+			BNode[] nodes = new BNode[height()];
+			int[] next = new int[nodes.length];
+			int depth = 0;
+			{
+				if (size > 0)
+					pushLeft(root);
+			}
+
+			void pushLeft(BNode n){
+				while (n != null){
+					nodes[depth] = n;
+					next[depth] = 0;
+					depth = depth + 1;
+					n = n.isLeaf() ? null : n.children[0];
+				}
+			}
+			public boolean hasNext() {
+				return depth > 0;
+			}
+			public K next() {
+				if (depth == 0)
+					throw new NoSuchElementException();
+				BNode n = nodes[depth - 1];
+				int i = next[depth - 1];
+				next[depth - 1] = i + 1;
+				if (i + 1 == n.keys.length)
+					depth = depth - 1; // nothing more to return from n
+				if (!n.isLeaf())
+					pushLeft(n.children[i + 1]);
+				return (K) n.keys[i];
+			}
+			public void remove() {
+				String msg = "Remove method is unimplemented";
+				throw new UnsupportedOperationException(msg);
+			}
+		};
+	}
+
+	ArrayList<K> addKeysToList(ArrayList<K> aList) {
+		for (K k : this)
+			aList.add(k);
+		return aList;
+	}
+
+	@Override
+	boolean isSorted() {
+		return true;
+	}
+
+	@Override
+	Comparator<? super K> getComparator() {
+		return c;
+	}
+}
@@ -0,0 +1,11 @@
+// Visitor interface that is given entries in chunks instead of
+// one at a time.
+
+public interface BatchVisitor<K,V> {
+
+    // Given the first n keys and values of the arrays, in ascending
+    // key order, replaces each values[i] with a suitable value for
+    // keys[i].
+
+    public void visit (K[] keys, V[] values, int n);
+}
@@ -0,0 +1,604 @@
+// Throughput benchmarks for FMap extensions.
+//
+// Unlike the asymptotic timing tests in TestFMap, these only report
+// numbers for comparing implementations on the machine at hand.
+//
+// Usage: java Benchmarks [name ...]
+// With no arguments, every benchmark is run.
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class Benchmarks {
+
+    public static void main(String args[]) throws Exception {
+        Benchmarks b = new Benchmarks();
+        if (args.length == 0)
+            args = new String[] { "contention", "combining", "snapshot",
+                                  "frozen", "frozenLong", "offHeap",
+                                  "bloom", "hashed", "btree", "small" };
+        for (String name : args) {
+            if (name.equals("contention"))
+                b.contention();
+            else if (name.equals("combining"))
+                b.combining();
+            else if (name.equals("snapshot"))
+                b.snapshot();
+            else if (name.equals("frozen"))
+                b.frozen();
+            else if (name.equals("frozenLong"))
+                b.frozenLong();
+            else if (name.equals("offHeap"))
+                b.offHeap();
+            else if (name.equals("bloom"))
+                b.bloom();
+            else if (name.equals("hashed"))
+                b.hashed();
+            else if (name.equals("btree"))
+                b.btree();
+            else if (name.equals("small"))
+                b.small();
+            else
+                System.out.println("Unknown benchmark: " + name);
+        }
+    }
+
+    // A comparator for Integer values.
+
+    static final Comparator<Integer> intComparator
+        = new Comparator<Integer>() {
+                public int compare (Integer m, Integer n) {
+                    return m.compareTo(n);
+                }
+            };
+
+    // Returns a red-black tree with keys 0 through n-1 in random order.
+
+    static FMap<Integer,Integer> randomTree (int n, long seed) {
+        Random rng = new Random(seed);
+        FMap<Integer,Integer> f = FMap.emptyMap(intComparator);
+        while (f.size() < n) {
+            int k = rng.nextInt(n);
+            f = f.add(k, k);
+        }
+        return f;
+    }
+
+    // Prints the time per operation for one benchmark run.
+
+    static void report (String what, long ops, long nanos) {
+        System.out.println("    " + what + ": "
+                           + (ops * 1000000L / Math.max(nanos, 1))
+                           + " ops/ms");
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // Contention: shared FMap written by many threads.
+
+    // The lock-based holder that FMapRef replaces.
+
+    static class LockedFMap<K,V> {
+        FMap<K,V> map;
+
+        LockedFMap (FMap<K,V> map) {
+            this.map = map;
+        }
+
+        synchronized void put (K key, V value) {
+            map = map.add(key, value);
+        }
+
+        synchronized FMap<K,V> snapshot () {
+            return map;
+        }
+    }
+
+    // A writer for one thread of the contention benchmark.
+
+    interface Writer {
+        void put (int key);
+    }
+
+    // Runs threads writers, each doing opsPerThread puts of random
+    // keys below keyRange, and returns the elapsed nanoseconds.
+
+    static long runThreads (int threads, final int opsPerThread,
+                            final int keyRange, final Writer w)
+        throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t = t + 1) {
+            final long seed = t;
+            new Thread() {
+                public void run () {
+                    Random rng = new Random(seed);
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < opsPerThread; i = i + 1)
+                        w.put(rng.nextInt(keyRange));
+                    done.countDown();
+                }
+            }.start();
+        }
+        long tStart = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - tStart;
+    }
+
+    void contention () throws InterruptedException {
+        System.out.println();
+        System.out.println("Contention: puts into a shared 100000-entry map");
+        int n = 100000;
+        int ops = 20000;
+        FMap<Integer,Integer> base = randomTree(n, 1);
+        for (int threads = 1; threads <= 64; threads = threads * 2) {
+            System.out.println("  " + threads + " threads");
+            for (int round = 0; round < 2; round = round + 1) {
+                final LockedFMap<Integer,Integer> locked
+                    = new LockedFMap<Integer,Integer>(base);
+                long tLocked = runThreads(threads, ops, n, new Writer() {
+                        public void put (int key) {
+                            locked.put(key, -key);
+                        }
+                    });
+                final FMapRef<Integer,Integer> ref
+                    = new FMapRef<Integer,Integer>(base);
+                long tRef = runThreads(threads, ops, n, new Writer() {
+                        public void put (int key) {
+                            ref.put(key, -key);
+                        }
+                    });
+                if (round == 1) {   // round 0 is warm-up
+                    report("synchronized", (long) threads * ops, tLocked);
+                    report("FMapRef CAS ", (long) threads * ops, tRef);
+                }
+            }
+        }
+    }
+
+    void combining () throws InterruptedException {
+        System.out.println();
+        System.out.println("Combining: puts into a shared 100000-entry map");
+        int n = 100000;
+        int ops = 20000;
+        FMap.FTree<Integer,Integer>
+            base = (FMap.FTree<Integer,Integer>) randomTree(n, 1);
+        for (int threads = 1; threads <= 64; threads = threads * 2) {
+            System.out.println("  " + threads + " threads");
+            for (int round = 0; round < 2; round = round + 1) {
+                final FMapRef<Integer,Integer> ref
+                    = new FMapRef<Integer,Integer>(base);
+                long tRef = runThreads(threads, ops, n, new Writer() {
+                        public void put (int key) {
+                            ref.put(key, -key);
+                        }
+                    });
+                final CombiningFTree<Integer,Integer> combining
+                    = new CombiningFTree<Integer,Integer>(base, threads);
+                long tCombining = runThreads(threads, ops, n, new Writer() {
+                        public void put (int key) {
+                            combining.put(key, -key);
+                        }
+                    });
+                if (round == 1) {   // round 0 is warm-up
+                    report("FMapRef CAS   ", (long) threads * ops, tRef);
+                    report("CombiningFTree", (long) threads * ops, tCombining);
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // Snapshots: writing and reloading a large tree.
+
+    void snapshot () throws IOException {
+        System.out.println();
+        System.out.println("Snapshot: write and reload 1000000 entries");
+        FMap.FTree<Integer,Integer>
+            t = (FMap.FTree<Integer,Integer>) randomTree(1000000, 1);
+        Path file
+            = Files.createTempFile("bench", ".snapshot");
+        try {
+            for (int round = 0; round < 3; round = round + 1) {
+                long tStart = System.nanoTime();
+                FMapSnapshot.write(t, file, Codecs.INTEGER, Codecs.INTEGER);
+                long tWrite = System.nanoTime() - tStart;
+                tStart = System.nanoTime();
+                FMap.FTree<Integer,Integer> r
+                    = FMapSnapshot.read(file, intComparator,
+                                        Codecs.INTEGER, Codecs.INTEGER);
+                long tRead = System.nanoTime() - tStart;
+                long mb = Files.size(file) >> 20;
+                System.out.println("    " + mb + " MB written in "
+                                   + tWrite / 1000000 + "ms, read in "
+                                   + tRead / 1000000 + "ms ("
+                                   + r.size() + " entries)");
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // Frozen maps: lookups in an FTree and its Eytzinger copy.
+
+    // Returns random keys below n, boxed ahead of time.
+
+    static Integer[] randomKeys (int count, int n, long seed) {
+        Random rng = new Random(seed);
+        Integer[] keys = new Integer[count];
+        for (int i = 0; i < count; i = i + 1)
+            keys[i] = rng.nextInt(n);
+        return keys;
+    }
+
+    void frozen () {
+        System.out.println();
+        System.out.println("Frozen: random gets, FTree vs FrozenFMap");
+        int ops = 1000000;
+        for (int n = 1000; n <= 1000000; n = n * 10) {
+            System.out.println("  " + n + " entries");
+            FMap.FTree<Integer,Integer>
+                t = (FMap.FTree<Integer,Integer>) randomTree(n, 1);
+            FrozenFMap<Integer,Integer> z = t.freeze();
+            Integer[] keys = randomKeys(ops, n, 2);
+            long sum = 0;
+            for (int round = 0; round < 3; round = round + 1) {
+                long tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + t.get(keys[i]);
+                long tTree = System.nanoTime() - tStart;
+                tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + z.get(keys[i]);
+                long tFrozen = System.nanoTime() - tStart;
+                if (round == 2) {   // rounds 0 and 1 are warm-up
+                    report("FTree     ", ops, tTree);
+                    report("FrozenFMap", ops, tFrozen);
+                }
+            }
+            if (sum == 42)
+                System.out.println();
+        }
+    }
+
+    // A comparator for Long values.
+
+    static final Comparator<Long> longComparator
+        = new Comparator<Long>() {
+                public int compare (Long m, Long n) {
+                    return m.compareTo(n);
+                }
+            };
+
+    void frozenLong () {
+        System.out.println();
+        System.out.println("Frozen long: random gets of Long keys");
+        int ops = 1000000;
+        for (int n = 1000; n <= 1000000; n = n * 10) {
+            System.out.println("  " + n + " entries");
+            Random rng = new Random(1);
+            FMap<Long,Long> f = FMap.emptyMap(longComparator);
+            while (f.size() < n) {
+                long k = rng.nextInt(n);
+                f = f.add(k, k);
+            }
+            FMap.FTree<Long,Long> t = (FMap.FTree<Long,Long>) f;
+            FrozenFMap<Long,Long> z = t.freeze();
+            FrozenLongFMap<Long,Long> zl = t.freeze(LongKeys.LONG);
+            long[] keys = new long[ops];
+            Long[] boxed = new Long[ops];
+            for (int i = 0; i < ops; i = i + 1) {
+                keys[i] = rng.nextInt(n);
+                boxed[i] = keys[i];
+            }
+            long sum = 0;
+            for (int round = 0; round < 3; round = round + 1) {
+                long tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + t.get(boxed[i]);
+                long tTree = System.nanoTime() - tStart;
+                tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + z.get(boxed[i]);
+                long tFrozen = System.nanoTime() - tStart;
+                tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + zl.getLong(keys[i]);
+                long tLong = System.nanoTime() - tStart;
+                if (round == 2) {   // rounds 0 and 1 are warm-up
+                    report("FTree         ", ops, tTree);
+                    report("FrozenFMap    ", ops, tFrozen);
+                    report("FrozenLongFMap", ops, tLong);
+                }
+            }
+            if (sum == 42)
+                System.out.println();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // Off-heap trees: lookups, and full collections with a large
+    // tree alive.
+
+    // Returns the milliseconds taken by a full collection.
+
+    static long gcMillis () {
+        long tStart = System.nanoTime();
+        System.gc();
+        return (System.nanoTime() - tStart) / 1000000;
+    }
+
+    void offHeap () {
+        System.out.println();
+        System.out.println("Off-heap: 1000000 entries, FTree vs OffHeapFMap");
+        int n = 1000000;
+        int ops = 1000000;
+        Integer[] keys = randomKeys(ops, n, 2);
+        FMap.FTree<Integer,Integer>
+            t = (FMap.FTree<Integer,Integer>) randomTree(n, 1);
+        OffHeapFMap<Integer,Integer> m
+            = OffHeapFMap.copyOf(t, Codecs.INTEGER, Codecs.INTEGER);
+        long sum = 0;
+        for (int round = 0; round < 3; round = round + 1) {
+            long tStart = System.nanoTime();
+            for (int i = 0; i < ops; i = i + 1)
+                sum = sum + t.get(keys[i]);
+            if (round == 2)
+                report("FTree get      ", ops, System.nanoTime() - tStart);
+        }
+        System.out.println("    full GC with FTree alive: " + gcMillis() + "ms");
+        t = null;
+        gcMillis();
+
+        for (int round = 0; round < 3; round = round + 1) {
+            long tStart = System.nanoTime();
+            for (int i = 0; i < ops; i = i + 1)
+                sum = sum + m.get(keys[i]);
+            if (round == 2)
+                report("OffHeapFMap get", ops, System.nanoTime() - tStart);
+        }
+        System.out.println("    full GC with OffHeapFMap alive: "
+                           + gcMillis() + "ms");
+
+        long tStart = System.nanoTime();
+        for (int i = 0; i < 100000; i = i + 1)
+            m = m.add(keys[i], -keys[i]);
+        report("OffHeapFMap add", 100000, System.nanoTime() - tStart);
+        long before = m.arena().reservedBytes();
+        List<OffHeapFMap<Integer,Integer>> live
+            = OffHeapFMap.compact(Collections.singletonList(m));
+        m.arena().close();
+        System.out.println("    compaction after the adds: " + (before >> 20)
+                           + " MB to "
+                           + (live.get(0).arena().reservedBytes() >> 20)
+                           + " MB");
+        if (sum == 42)
+            System.out.println();
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // Bloom filters: containsKey as the fraction of hits varies.
+
+    void bloom () {
+        System.out.println();
+        System.out.println("Bloom: containsKey on 1000000 entries, by hit ratio");
+        int n = 1000000;
+        int ops = 1000000;
+        // even keys, so that misses fall all over the tree
+        Random rng = new Random(1);
+        FMap<Integer,Integer> t = FMap.emptyMap(intComparator);
+        while (t.size() < n) {
+            int k = 2 * rng.nextInt(n);
+            t = t.add(k, k);
+        }
+        FilteredFMap<Integer,Integer> f = t.withBloomFilter(0.01);
+        System.out.println("  filter: " + (f.filter().bytes() >> 10) + " KB");
+        for (int percent = 0; percent <= 100; percent = percent + 25) {
+            System.out.println("  " + percent + "% hits");
+            rng = new Random(2);
+            Integer[] keys = new Integer[ops];
+            for (int i = 0; i < ops; i = i + 1) {
+                if (rng.nextInt(100) < percent)
+                    keys[i] = 2 * rng.nextInt(n);
+                else
+                    keys[i] = 2 * rng.nextInt(n) + 1;
+            }
+            int found = 0;
+            for (int round = 0; round < 3; round = round + 1) {
+                long tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    if (t.containsKey(keys[i]))
+                        found = found + 1;
+                long tTree = System.nanoTime() - tStart;
+                tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    if (f.containsKey(keys[i]))
+                        found = found + 1;
+                long tFiltered = System.nanoTime() - tStart;
+                if (round == 2) {   // rounds 0 and 1 are warm-up
+                    report("FTree       ", ops, tTree);
+                    report("FilteredFMap", ops, tFiltered);
+                }
+            }
+            if (found == 42)
+                System.out.println();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // Hashed maps: gets and adds, FTree vs HashedFMap.
+
+    void hashed () {
+        System.out.println();
+        System.out.println("Hashed: FTree vs HashedFMap");
+        int ops = 1000000;
+        for (int n = 1000; n <= 1000000; n = n * 10) {
+            System.out.println("  " + n + " entries");
+            Integer[] keys = randomKeys(ops, n, 2);
+            Random rng = new Random(1);
+            FMap<Integer,Integer> t = FMap.emptyMap(intComparator);
+            HashedFMap<Integer,Integer> h = FMap.emptyHashedMap(intComparator);
+            long tStart = System.nanoTime();
+            while (t.size() < n) {
+                int k = rng.nextInt(n);
+                t = t.add(k, k);
+            }
+            long tTreeAdd = System.nanoTime() - tStart;
+            rng = new Random(1);
+            tStart = System.nanoTime();
+            while (h.size() < n) {
+                int k = rng.nextInt(n);
+                h = h.add(k, k);
+            }
+            long tHashedAdd = System.nanoTime() - tStart;
+            long sum = 0;
+            for (int round = 0; round < 3; round = round + 1) {
+                tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + t.get(keys[i]);
+                long tTree = System.nanoTime() - tStart;
+                tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + h.get(keys[i]);
+                long tHashed = System.nanoTime() - tStart;
+                if (round == 2) {   // rounds 0 and 1 are warm-up
+                    report("FTree get     ", ops, tTree);
+                    report("HashedFMap get", ops, tHashed);
+                }
+            }
+            System.out.println("    building: FTree " + tTreeAdd / 1000000
+                               + "ms, HashedFMap " + tHashedAdd / 1000000
+                               + "ms");
+            if (sum == 42)
+                System.out.println();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // B-trees: gets, depth and memory, FTree vs BTreeFMap.
+
+    // Returns the bytes in use on the heap after a full collection.
+
+    static long usedBytes () {
+        System.gc();
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    // Returns map with the keys 0 through n-1 added in random order.
+
+    static FMap<Integer,Integer> fill (FMap<Integer,Integer> map, int n) {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < n; i = i + 1)
+            keys.add(i);
+        Collections.shuffle(keys, new Random(1));
+        for (Integer k : keys)
+            map = map.add(k, k);
+        return map;
+    }
+
+    void btree () {
+        System.out.println();
+        System.out.println("B-tree: 1000000 entries, FTree vs BTreeFMap");
+        int n = 1000000;
+        int ops = 1000000;
+        Integer[] keys = randomKeys(ops, n, 2);
+        int[] fanouts = { 0, 16, 32, 64 };  // 0 is the FTree
+        for (int fanout : fanouts) {
+            long before = usedBytes();
+            long tStart = System.nanoTime();
+            FMap<Integer,Integer> m;
+            if (fanout == 0)
+                m = fill(FMap.<Integer,Integer>emptyMap(intComparator), n);
+            else
+                m = fill(FMap.<Integer,Integer>emptyBTreeMap(intComparator,
+                                                             fanout), n);
+            long tBuild = System.nanoTime() - tStart;
+            long bytes = usedBytes() - before;
+            String name;
+            int height;
+            if (fanout == 0) {
+                name = "FTree";
+                height = ((FMap.FTree<Integer,Integer>) m).diagnostics().height();
+            }
+            else {
+                name = "BTreeFMap, fanout " + fanout;
+                height = ((BTreeFMap<Integer,Integer>) m).height();
+            }
+            System.out.println("  " + name + ": height " + height + ", "
+                               + bytes / n + " bytes/entry, built in "
+                               + tBuild / 1000000 + "ms");
+            long sum = 0;
+            for (int round = 0; round < 3; round = round + 1) {
+                tStart = System.nanoTime();
+                for (int i = 0; i < ops; i = i + 1)
+                    sum = sum + m.get(keys[i]);
+                if (round == 2)   // rounds 0 and 1 are warm-up
+                    report("get", ops, System.nanoTime() - tStart);
+            }
+            if (sum == 42)
+                System.out.println();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // Small maps: memory and gets for many tiny maps.
+
+    void small () {
+        System.out.println();
+        System.out.println("Small: 200000 maps of each size, FTree vs SmallFMap");
+        int count = 200000;
+        Integer[] keys = new Integer[8];
+        for (int i = 0; i < 8; i = i + 1)
+            keys[i] = i;
+        for (int size = 1; size <= 8; size = size * 2) {
+            System.out.println("  " + size + " entries");
+            for (int kind = 0; kind < 2; kind = kind + 1) {
+                long before = usedBytes();
+                List<FMap<Integer,Integer>> maps
+                    = new ArrayList<FMap<Integer,Integer>>();
+                for (int j = 0; j < count; j = j + 1) {
+                    FMap<Integer,Integer> m;
+                    if (kind == 0)
+                        m = FMap.emptyMap(intComparator);
+                    else
+                        m = FMap.emptySmallMap(intComparator);
+                    for (int i = 0; i < size; i = i + 1)
+                        m = m.add(keys[(i * 5) % size], keys[i]);
+                    maps.add(m);
+                }
+                long bytes = usedBytes() - before;
+                long sum = 0;
+                long tStart = 0;
+                for (int round = 0; round < 3; round = round + 1) {
+                    tStart = System.nanoTime();
+                    for (FMap<Integer,Integer> m : maps)
+                        for (int i = 0; i < size; i = i + 1)
+                            sum = sum + m.get(keys[i]);
+                }
+                long t = System.nanoTime() - tStart;
+                System.out.println("    " + (kind == 0 ? "FTree    " : "SmallFMap")
+                                   + ": " + bytes / count + " bytes/map, "
+                                   + ((long) count * size * 1000000L
+                                      / Math.max(t, 1))
+                                   + " gets/ms");
+                if (sum == 42)
+                    System.out.println();
+            }
+        }
+    }
+}
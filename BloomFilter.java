@@ -0,0 +1,68 @@
+// A blocked Bloom filter: a set of keys that may answer "maybe" for
+// a key it does not hold, but never "no" for one it does.
+//
+// Each key sets k bits within one 512-bit block (one cache line), so
+// a lookup reads a single block whatever k is.  Keeping a key's bits
+// in one block makes false positives a little more likely than in a
+// plain Bloom filter of the same size.
+//
+// Keys are hashed with hashCode, spread by the splitmix64 finalizer
+// (FMap.FTree.mix, which content hashes use too).
+
+public class BloomFilter<K> {
+
+	static final int BLOCK_BITS = 512;
+	static final int BLOCK_LONGS = BLOCK_BITS / 64;
+
+	long[] bits;
+	int blocks;
+	int k;
+
+	// a filter sized to hold n keys with about the given false
+	// positive rate, 0 < fpp < 1
+	public BloomFilter(int n, double fpp){
+		if (!(fpp > 0 && fpp < 1) || n < 0)
+			throw new IllegalArgumentException();
+		double ln2 = Math.log(2);
+		double m = -Math.max(n, 1) * Math.log(fpp) / (ln2 * ln2);
+		this.blocks = (int) Math.min(Integer.MAX_VALUE / BLOCK_LONGS,
+				Math.ceil(m / BLOCK_BITS));
+		this.k = (int) Math.max(1, Math.round(m / Math.max(n, 1) * ln2));
+		this.bits = new long[blocks * BLOCK_LONGS];
+	}
+
+	// the first long of key's block
+	int blockOf(long h){
+		return (int) (((h >>> 32) * blocks) >>> 32) * BLOCK_LONGS;
+	}
+
+	public void add(K key){
+		long h = FMap.FTree.mix(key.hashCode());
+		int base = blockOf(h);
+		int h1 = (int) h;
+		int h2 = (int) (FMap.FTree.mix(h) >>> 32) | 1;
+		for (int i = 0; i < k; i = i + 1){
+			int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+			bits[base + (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	// false if key was never added; true if it probably was
+	public boolean mightContain(K key){
+		long h = FMap.FTree.mix(key.hashCode());
+		int base = blockOf(h);
+		int h1 = (int) h;
+		int h2 = (int) (FMap.FTree.mix(h) >>> 32) | 1;
+		for (int i = 0; i < k; i = i + 1){
+			int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+			if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// the bytes taken by the bit array
+	public long bytes(){
+		return 8L * bits.length;
+	}
+}
@@ -0,0 +1,16 @@
+// Interface for writing and reading keys or values in binary form.
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public interface Codec<T> {
+
+    // Writes t to out, in a form that read can read back.
+
+    public void write (T t, DataOutput out) throws IOException;
+
+    // Reads a value written by write.
+
+    public T read (DataInput in) throws IOException;
+}
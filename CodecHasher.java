@@ -0,0 +1,64 @@
+// An EntryHasher that hashes the encoded bytes of an entry, so that
+// entries whose keys or values merely share a hashCode (say "Aa" and
+// "BB") still hash differently.
+//
+// The key and the value are written with their codecs and the bytes
+// are hashed 8 at a time, each step mixed by the splitmix64 finalizer.
+// Two CodecHashers with the same codecs are equal, so content hashes
+// that one of them caches for an FTree are reused by the other.
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+public class CodecHasher<K, V> implements EntryHasher<K, V> {
+
+	Codec<K> keys;
+	Codec<V> values;
+
+	public CodecHasher(Codec<K> keys, Codec<V> values){
+		this.keys = keys;
+		this.values = values;
+	}
+
+	public long hash(K key, V value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			keys.write(key, out);
+			values.write(value, out);
+			out.flush();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return hash(bytes.toByteArray());
+	}
+
+	static long hash(byte[] b){
+		long h = 0x9e3779b97f4a7c15L;
+		int i = 0;
+		while (i < b.length){
+			long word = 0;
+			for (int j = 0; j < 8 && i + j < b.length; j = j + 1)
+				word = word | ((b[i + j] & 0xffL) << (8 * j));
+			h = FMap.FTree.mix(h ^ word);
+			i = i + 8;
+		}
+		return FMap.FTree.mix(h ^ b.length);
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if (!(o instanceof CodecHasher))
+			return false;
+		CodecHasher<?, ?> other = (CodecHasher<?, ?>) o;
+		return other.keys == keys && other.values == values;
+	}
+
+	@Override
+	public int hashCode(){
+		return System.identityHashCode(keys) * 31 + System.identityHashCode(values);
+	}
+}
@@ -0,0 +1,56 @@
+// Codecs for common key and value types.
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class Codecs {
+
+	public static final FixedWidthCodec<Integer> INTEGER = 
+			new FixedWidthCodec<Integer>(){
+		public void write(Integer t, DataOutput out) throws IOException {
+			out.writeInt(t);
+		}
+		public Integer read(DataInput in) throws IOException {
+			return in.readInt();
+		}
+		public int width() {
+			return 4;
+		}
+		public void put(ByteBuffer buffer, int index, Integer t) {
+			buffer.putInt(index, t);
+		}
+		public Integer get(ByteBuffer buffer, int index) {
+			return buffer.getInt(index);
+		}
+	};
+
+	public static final FixedWidthCodec<Long> LONG = 
+			new FixedWidthCodec<Long>(){
+		public void write(Long t, DataOutput out) throws IOException {
+			out.writeLong(t);
+		}
+		public Long read(DataInput in) throws IOException {
+			return in.readLong();
+		}
+		public int width() {
+			return 8;
+		}
+		public void put(ByteBuffer buffer, int index, Long t) {
+			buffer.putLong(index, t);
+		}
+		public Long get(ByteBuffer buffer, int index) {
+			return buffer.getLong(index);
+		}
+	};
+
+	public static final Codec<String> STRING = new Codec<String>(){
+		public void write(String t, DataOutput out) throws IOException {
+			out.writeUTF(t);
+		}
+		public String read(DataInput in) throws IOException {
+			return in.readUTF();
+		}
+	};
+}
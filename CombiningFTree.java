@@ -0,0 +1,221 @@
+// A shared FTree updated by flat combining.
+//
+// Writers publish their operation in a slot of a combining array and
+// then either wait or become the combiner.  The combiner (whoever holds
+// the lock) takes every published operation, sorts the batch by key,
+// applies it to the current tree as one union plus removals, publishes
+// the new root, and marks the operations done.  Under heavy contention
+// one combiner thread does all the path copying for many writers, and
+// the batch's puts share path copies instead of each thread copying a
+// path only to lose a compareAndSet.
+//
+// Ops on the same key in one batch are concurrent, so the batch orders
+// them by their slots and the last one wins.  Every op in a batch gets
+// back the tree after the whole batch, so the tree an overwritten op
+// gets back holds the winner's write, not its own; putWithOutcome and
+// removeWithOutcome report which ops were overwritten.
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CombiningFTree<K, V> {
+
+	// a put (or a remove, if remove is true) waiting to be applied
+	static class Op<K, V> {
+		K key;
+		V value;
+		boolean remove;
+		FMap.FTree<K, V> result;   // the tree once the op is applied
+		boolean superseded;        // a later op in its batch had its key
+		Throwable error;           // or why its batch failed
+		volatile boolean done;     // set after result or error
+
+		Op(K key, V value, boolean remove){
+			this.key = key;
+			this.value = value;
+			this.remove = remove;
+		}
+	}
+
+	// batches with fewer puts than this are inserted one by one
+	static final int UNION_THRESHOLD = 16;
+
+	volatile FMap.FTree<K, V> root;
+	AtomicReferenceArray<Op<K, V>> slots;
+	ReentrantLock combinerLock = new ReentrantLock();
+	Comparator<Op<K, V>> byKey;
+
+	// slots is the size of the combining array, usually about the
+	// number of writer threads
+	public CombiningFTree(FMap.FTree<K, V> tree, int slots){
+		if (slots < 1)
+			throw new IllegalArgumentException();
+		this.root = tree;
+		this.slots = new AtomicReferenceArray<Op<K, V>>(slots);
+		final Comparator<? super K> c = tree.getComparator();
+		this.byKey = new Comparator<Op<K, V>>(){
+			public int compare(Op<K, V> a, Op<K, V> b) {
+				return c.compare(a.key, b.key);
+			}
+		};
+	}
+
+	// returns the current tree, which later writes never change
+	public FMap.FTree<K, V> snapshot(){
+		return root;
+	}
+
+	public V get(K key){
+		return root.get(key);
+	}
+
+	public boolean containsKey(K key){
+		return root.containsKey(key);
+	}
+
+	// what a put or remove did: the tree after its batch, and whether
+	// a later op on the same key in that batch overwrote it
+	public static class Outcome<K, V> {
+		FMap.FTree<K, V> tree;
+		boolean superseded;
+
+		Outcome(FMap.FTree<K, V> tree, boolean superseded){
+			this.tree = tree;
+			this.superseded = superseded;
+		}
+
+		public FMap.FTree<K, V> tree(){
+			return tree;
+		}
+
+		// true if tree holds another op's write to the key instead
+		public boolean superseded(){
+			return superseded;
+		}
+	}
+
+	// returns the tree after this put's batch, which includes this put
+	// unless a concurrent op on the same key superseded it
+	public FMap.FTree<K, V> put(K key, V value){
+		return putWithOutcome(key, value).tree();
+	}
+
+	// returns the tree after this remove's batch (see put)
+	public FMap.FTree<K, V> remove(K key){
+		return removeWithOutcome(key).tree();
+	}
+
+	public Outcome<K, V> putWithOutcome(K key, V value){
+		return apply(new Op<K, V>(key, value, false));
+	}
+
+	public Outcome<K, V> removeWithOutcome(K key){
+		return apply(new Op<K, V>(key, null, true));
+	}
+
+	// publishes op, then combines or waits until some combiner has
+	// applied it
+	Outcome<K, V> apply(Op<K, V> op){
+		int n = slots.length();
+		int i = (int) (Thread.currentThread().getId() % n);
+		while (!slots.compareAndSet(i, null, op)){
+			i = (i + 1) % n;
+			if (i == 0 && !tryCombine())
+				Thread.yield(); // every slot is taken and someone is combining
+			else
+				Thread.onSpinWait();
+		}
+		while (!op.done){
+			if (!tryCombine())
+				Thread.yield(); // the combiner may run a large batch
+		}
+		// the combiner's failure is rethrown in every writer of the batch
+		if (op.error instanceof RuntimeException)
+			throw (RuntimeException) op.error;
+		if (op.error instanceof Error)
+			throw (Error) op.error;
+		return new Outcome<K, V>(op.result, op.superseded);
+	}
+
+	// if no one else is combining, applies every published op and
+	// returns true
+	boolean tryCombine(){
+		if (!combinerLock.tryLock())
+			return false;
+		try {
+			int n = slots.length();
+			Op<K, V>[] batch = new Op[n];
+			int count = 0;
+			for (int i = 0; i < n; i = i + 1){
+				Op<K, V> op = slots.getAndSet(i, null);
+				if (op != null){
+					batch[count] = op;
+					count = count + 1;
+				}
+			}
+			if (count > 0){
+				// the ops are out of their slots now, so each one must be
+				// marked done even if the batch fails, or its writer
+				// would wait forever; a failed batch leaves root as it was
+				FMap.FTree<K, V> tree = null;
+				Throwable error = null;
+				try {
+					tree = applyBatch(root, batch, count);
+					root = tree;
+				}
+				catch (RuntimeException | Error e) {
+					error = e;
+				}
+				for (int i = 0; i < count; i = i + 1){
+					batch[i].result = tree;
+					batch[i].error = error;
+					batch[i].done = true;
+				}
+			}
+			return true;
+		}
+		finally {
+			combinerLock.unlock();
+		}
+	}
+
+	// sorts the ops by key, stably, so for equal keys the op in the
+	// last slot wins; the others are marked superseded
+	// large batches of puts are built into one tree and unioned into
+	// the current one, so they share their path copies; small ones
+	// are cheaper to insert one by one
+	FMap.FTree<K, V> applyBatch(FMap.FTree<K, V> tree, Op<K, V>[] batch, int count){
+		Arrays.sort(batch, 0, count, byKey);
+		Object[] keys = new Object[count];
+		Object[] values = new Object[count];
+		int puts = 0;
+		for (int i = 0; i < count; i = i + 1){
+			Op<K, V> op = batch[i];
+			if (i + 1 < count && byKey.compare(op, batch[i + 1]) == 0){
+				op.superseded = true;
+				continue;
+			}
+			if (op.remove)
+				tree = tree.remove(op.key);
+			else {
+				keys[puts] = op.key;
+				values[puts] = op.value;
+				puts = puts + 1;
+			}
+		}
+		if (puts < UNION_THRESHOLD){
+			for (int i = 0; i < puts; i = i + 1)
+				tree = tree.insert((K) keys[i], (V) values[i]);
+			return tree;
+		}
+		FMap.FTree<K, V> added = FMap.FTree.buildSorted(
+				tree.getComparator(), keys, values, 0, puts);
+		return FMap.FTree.union(tree, added);
+	}
+
+	public String toString(){
+		return root.toString();
+	}
+}
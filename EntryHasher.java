@@ -0,0 +1,11 @@
+// Interface for hashing one entry of a map to 64 bits, for the
+// content hashes of FTree.
+
+public interface EntryHasher<K,V> {
+
+    // Returns a 64-bit hash of the entry (key, value).  Maps are
+    // hashed by summing over their entries, so the hash should be
+    // spread evenly over all 64 bits.
+
+    public long hash (K key, V value);
+}
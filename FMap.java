@@ -4,9 +4,24 @@
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 public abstract class FMap<K, V> implements Iterable<K>{
@@ -33,6 +48,8 @@ public abstract class FMap<K, V> implements Iterable<K>{
 			return false;
 		if (!(o instanceof FMap))
 			return false;
+		if (this == o) // e.g. a version shared by an unchanged accept
+			return true;
 		FMap<K, V> one = this;
 		FMap<K, V> two = (FMap<K, V>) o;
 		
@@ -91,6 +108,24 @@ public abstract class FMap<K, V> implements Iterable<K>{
 		return result;
 	}
 	
+	// returns a map without the given key (this map if the key is
+	// not there)
+	// the old FMaps have no way to drop an entry, so the default
+	// rebuilds the map from its other entries; FTree overrides this
+	public FMap<K, V> remove(K key){
+		if (!(this.containsKey(key)))
+			return this;
+		FMap<K, V> result = FMap.emptyMap();
+		if (this.isSorted())
+			result = FMap.emptyMap(this.getComparator());
+		ArrayList<K> keys = this.addKeysToList(new ArrayList<K>());
+		for (K k : keys){
+			if (!(k.equals(key)))
+				result = result.add(k, this.get(k));
+		}
+		return result;
+	}
+	
 	// Basic creators for OLD FMap instances	
 	public FMap<K, V> add(K key, V value){
 		return FMap.add(key, value, this);
@@ -102,6 +137,53 @@ public abstract class FMap<K, V> implements Iterable<K>{
 		return new Empty();
 	}
 	
+	// applies the visitors in order to every entry in a single pass,
+	// so map.acceptAll([v1, v2]) equals map.accept(v1).accept(v2)
+	// without building the intermediate map
+	public FMap<K, V> acceptAll(List<Visitor<K, V>> visitors){
+		return this.accept(new Chain<K, V>(visitors));
+	}
+	
+	// a visitor that passes each value through several visitors in turn
+	static class Chain<K, V> implements Visitor<K, V>{
+		
+		Visitor<K, V>[] visitors;
+		
+		Chain(List<Visitor<K, V>> visitors){
+			this.visitors = visitors.toArray(new Visitor[visitors.size()]);
+		}
+		
+		Chain(Visitor<K, V> first, Visitor<K, V> second){
+			this.visitors = new Visitor[] {first, second};
+		}
+		
+		public V visit(K k, V v){
+			for (int i = 0; i < visitors.length; i = i + 1)
+				v = visitors[i].visit(k, v);
+			return v;
+		}
+	}
+	
+	// returns a view of this FMap whose values are
+	// visitor.visit(key, value), computed the first time each key
+	// is looked up and remembered after that
+	// use Lazy.materialize() to turn the view into a real map
+	public Lazy<K, V> mapValuesLazy(Visitor<K, V> avisitor){
+		return new Lazy<K, V>(this, avisitor);
+	}
+	
+	// returns this map behind a Bloom filter of its keys with about
+	// the given false positive rate, so that most lookups of missing
+	// keys return without searching the map
+	// meant for maps that are read many times and not changed
+	// the filter hashes keys with hashCode, so keys must have equals
+	// and hashCode consistent with the map's comparator (if it has
+	// one); a comparator such as String.CASE_INSENSITIVE_ORDER would
+	// let the filter rule out keys the map holds
+	public FilteredFMap<K, V> withBloomFilter(double fpp){
+		return new FilteredFMap<K, V>(this, fpp);
+	}
+	
 	// Iterator
 	public Iterator<K> iterator() {
 		return new KeyIterator<K>(this);
@@ -112,6 +194,29 @@ public abstract class FMap<K, V> implements Iterable<K>{
 		return new FTree.EmptyTree<K, V>(c);
 	}
 	
+	// an empty sorted map for maps that usually stay small: up to
+	// SmallFMap.THRESHOLD entries it is one array, and beyond that
+	// it turns into an FTree
+	public static <K, V> SmallFMap<K, V> emptySmallMap(Comparator<? super K> c){
+		return new SmallFMap<K, V>(c, new Object[0]);
+	}
+	
+	// an empty persistent B-tree whose nodes have up to fanout
+	// children; the 1-argument version uses a fanout of 32
+	public static <K, V> BTreeFMap<K, V> emptyBTreeMap(Comparator<? super K> c){
+		return emptyBTreeMap(c, BTreeFMap.DEFAULT_FANOUT);
+	}
+	public static <K, V> BTreeFMap<K, V> emptyBTreeMap(Comparator<? super K> c,
+			int fanout){
+		return new BTreeFMap<K, V>(c, fanout, null, 0);
+	}
+	
+	// an empty sorted map that also keeps a hash index of its keys,
+	// for near constant-time get and containsKey
+	public static <K, V> HashedFMap<K, V> emptyHashedMap(Comparator<? super K> c){
+		return new HashedFMap<K, V>(FMap.<K, V>emptyMap(c), null);
+	}
+	
 	static abstract class FTree<K, V> extends FMap<K, V>{
 		
 		// precalculates size, initializes to 0, 
@@ -142,11 +247,924 @@ public abstract class FMap<K, V> implements Iterable<K>{
 		
 		abstract FTree<K, V> insert(K key, V value);
 		
-		String printcolor(){
-			if (red)
-				return "Red";
+		// removes the key by joining the pieces of every Node on the
+		// path to it, in O((lg n)^2) time
+		@Override
+		public abstract FTree<K, V> remove(K key);
+		
+		// walks the whole tree once and records its shape
+		// (height, black-height, depths, colors, estimated bytes)
+		public Diagnostics diagnostics(){
+			Diagnostics d = new Diagnostics();
+			this.collect(d, 0, 0);
+			return d;
+		}
+		
+		// adds this subtree to the given Diagnostics; depth is the
+		// depth of this subtree's root, blacks is the number of black
+		// Nodes on the path above it
+		abstract void collect(Diagnostics d, int depth, int blacks);
+		
+		// returns the fraction of this tree's Nodes that are also
+		// reachable from other, i.e. shared between the two versions
+		// a shared Node means its whole subtree is shared, so the walk
+		// over this tree stops there
+		public double sharedFraction(FTree<K, V> other){
+			if (this.size == 0)
+				return 1.0;
+			IdentityHashMap<FTree<K, V>, Boolean> seen = 
+					new IdentityHashMap<FTree<K, V>, Boolean>();
+			other.markNodes(seen);
+			return ((double) this.countShared(seen)) / this.size;
+		}
+		
+		// puts every Node and leaf of this subtree into seen
+		abstract void markNodes(IdentityHashMap<FTree<K, V>, Boolean> seen);
+		
+		// estimates the bytes taken by the Nodes and leaves of all the
+		// trees, counting the parts they share only once
+		static <K, V> long retainedBytes(Iterable<FTree<K, V>> trees){
+			IdentityHashMap<FTree<K, V>, Boolean> seen = 
+					new IdentityHashMap<FTree<K, V>, Boolean>();
+			for (FTree<K, V> t : trees)
+				t.markNodes(seen);
+			long bytes = 0;
+			for (FTree<K, V> t : seen.keySet()){
+				if (t.isEmpty())
+					bytes = bytes + Diagnostics.EMPTY_BYTES;
+				else
+					bytes = bytes + Diagnostics.NODE_BYTES;
+			}
+			return bytes;
+		}
+		
+		// counts the Nodes of this subtree that are in seen
+		abstract int countShared(IdentityHashMap<FTree<K, V>, Boolean> seen);
+		
+		// the content hash of this tree: the sum of entryHash over all
+		// of its entries, so it depends only on the entries and not on
+		// the shape of the tree, and equal maps in different processes
+		// have equal hashes (provided the keys' and values' hashCode
+		// methods don't depend on object identity)
+		// entryHash only sees 32-bit hashCodes, so maps that differ only
+		// in keys or values with equal hashCodes hash the same; compare
+		// maps across processes with contentHash(EntryHasher) and a
+		// CodecHasher instead
+		public long contentHash(){
+			return this.contentHash(HASH_CODES);
+		}
+		
+		// the sum of h over all entries
+		// the hash of each Node's subtree is remembered in HASHES once
+		// computed, for as long as the Node lives; a new version only
+		// computes it for the Nodes on the paths it copied, so each add
+		// costs O(lg n) extra hashing
+		public abstract long contentHash(EntryHasher<? super K, ? super V> h);
+		
+		// the content hash of the entries whose keys are in [lo, hi),
+		// where a null bound means unbounded, in O(lg n) time
+		public long rangeHash(K lo, K hi){
+			return this.rangeHash(lo, hi, HASH_CODES);
+		}
+		
+		public long rangeHash(K lo, K hi, EntryHasher<? super K, ? super V> h){
+			if (lo == null && hi == null)
+				return this.contentHash(h);
+			if (lo == null)
+				return this.hashBelow(hi, h);
+			if (hi == null)
+				return this.hashAtLeast(lo, h);
+			return this.hashBetween(lo, hi, h);
+		}
+		
+		abstract long hashAtLeast(K lo, EntryHasher<? super K, ? super V> h);
+		abstract long hashBelow(K hi, EntryHasher<? super K, ? super V> h);
+		abstract long hashBetween(K lo, K hi, EntryHasher<? super K, ? super V> h);
+		
+		// the content hashes of Nodes, once computed
+		static final HashCache HASHES = new HashCache();
+		
+		// the number of keys in [lo, hi), where a null bound means
+		// unbounded, in O(lg n) time
+		public int rangeCount(K lo, K hi){
+			int below = 0;
+			if (lo != null)
+				below = this.rank(lo);
+			int upTo = this.size;
+			if (hi != null)
+				upTo = this.rank(hi);
+			return Math.max(0, upTo - below);
+		}
+		
+		// the number of keys less than key
+		public abstract int rank(K key);
+		
+		// the key at index i in comparator order, 0 <= i < size()
+		public abstract K select(int i);
+		
+		// a 64-bit hash of one entry, spread by the splitmix64 finalizer
+		// so that sums of entry hashes are well distributed
+		static long entryHash(Object key, Object value){
+			return mix((((long) key.hashCode()) << 32) 
+					^ (value.hashCode() & 0xffffffffL));
+		}
+		
+		// the splitmix64 finalizer
+		static long mix(long h){
+			h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+			h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+			return h ^ (h >>> 31);
+		}
+		
+		// the hasher behind contentHash() and rangeHash(lo, hi)
+		static final EntryHasher<Object, Object> HASH_CODES = 
+				new EntryHasher<Object, Object>(){
+			public long hash(Object key, Object value) {
+				return entryHash(key, value);
+			}
+		};
+		
+		// like accept, but only visits the entries whose keys are in
+		// [lo, hi) according to the comparator; subtrees entirely
+		// outside the range are shared with this tree, so this visits
+		// O(k + lg n) Nodes for k entries in the range
+		public abstract FTree<K, V> acceptRange(K lo, K hi, Visitor<K, V> avisitor);
+		
+		// returns the first key, in comparator order, whose entry
+		// satisfies the predicate, or null if there is none
+		// stops descending as soon as a matching entry is found
+		public abstract K findFirst(BiPredicate<? super K, ? super V> p);
+		
+		// returns a red-black tree of the entries that satisfy the
+		// predicate, testing them in comparator order
+		// subtrees in which every entry survives are shared as they are
+		// and the rest is rebuilt with join, so this takes O(n) time
+		public abstract FTree<K, V> filter(BiPredicate<? super K, ? super V> p);
+		
+		// the number of black Nodes on the leftmost path of t
+		static <K, V> int blackHeight(FTree<K, V> t){
+			int h = 0;
+			while (!t.isEmpty()){
+				if (!t.red)
+					h = h + 1;
+				t = ((Node<K, V>) t).l0;
+			}
+			return h;
+		}
+		
+		// returns a red-black tree holding the entries of l, (k, v) and
+		// the entries of r, where every key in l is less than k and
+		// every key in r is greater than k
+		// takes O(|blackHeight(l) - blackHeight(r)| + 1) time after
+		// the black heights are known
+		static <K, V> FTree<K, V> join(FTree<K, V> l, K k, V v, FTree<K, V> r){
+			if (l.red)
+				l = ((Node<K, V>) l).makeBlack();
+			if (r.red)
+				r = ((Node<K, V>) r).makeBlack();
+			int lh = blackHeight(l);
+			int rh = blackHeight(r);
+			
+			Node<K, V> t;
+			if (lh > rh){
+				t = joinRight(l, lh, k, v, r, rh);
+				if (t.red && t.r0.red)
+					t = t.makeBlack();
+			}
+			else if (lh < rh){
+				t = joinLeft(l, lh, k, v, r, rh);
+				if (t.red && t.l0.red)
+					t = t.makeBlack();
+			}
 			else
-				return "Black";
+				t = new Node<K, V>(k, v, l, r, true);
+			return t;
+		}
+		
+		// walks down the right spine of l to a black subtree with the
+		// black height of r and hangs (k, v) and r there, rotating
+		// on the way back up to remove two reds in a row
+		static <K, V> Node<K, V> joinRight(
+				FTree<K, V> l, int lh, K k, V v, FTree<K, V> r, int rh){
+			if (l.isEmpty() || (!l.red && lh <= rh))
+				return new Node<K, V>(k, v, l, r, true);
+			
+			Node<K, V> n = (Node<K, V>) l;
+			int childh = lh;
+			if (!n.red)
+				childh = lh - 1;
+			Node<K, V> right = joinRight(n.r0, childh, k, v, r, rh);
+			
+			if (!n.red && right.red && right.r0.red){
+				Node<K, V> newleft = new Node<K, V>(
+						n.k0, n.v0, n.l0, right.l0, false);
+				return new Node<K, V>(
+						right.k0, right.v0, newleft, 
+						((Node<K, V>) right.r0).makeBlack(), true);
+			}
+			return new Node<K, V>(n.k0, n.v0, n.l0, right, n.red);
+		}
+		
+		// the mirror image of joinRight
+		static <K, V> Node<K, V> joinLeft(
+				FTree<K, V> l, int lh, K k, V v, FTree<K, V> r, int rh){
+			if (r.isEmpty() || (!r.red && rh <= lh))
+				return new Node<K, V>(k, v, l, r, true);
+			
+			Node<K, V> n = (Node<K, V>) r;
+			int childh = rh;
+			if (!n.red)
+				childh = rh - 1;
+			Node<K, V> left = joinLeft(l, lh, k, v, n.l0, childh);
+			
+			if (!n.red && left.red && left.l0.red){
+				Node<K, V> newright = new Node<K, V>(
+						n.k0, n.v0, left.r0, n.r0, false);
+				return new Node<K, V>(
+						left.k0, left.v0, 
+						((Node<K, V>) left.l0).makeBlack(), newright, true);
+			}
+			return new Node<K, V>(n.k0, n.v0, left, n.r0, n.red);
+		}
+		
+		// joins two trees without a middle entry by moving the
+		// largest entry of l between them
+		static <K, V> FTree<K, V> join2(FTree<K, V> l, FTree<K, V> r){
+			if (l.isEmpty())
+				return r;
+			if (r.isEmpty())
+				return l;
+			Node<K, V> last = (Node<K, V>) l;
+			while (!last.r0.isEmpty())
+				last = (Node<K, V>) last.r0;
+			return join(withoutLast(l), last.k0, last.v0, r);
+		}
+		
+		// returns the tree t without its largest entry
+		static <K, V> FTree<K, V> withoutLast(FTree<K, V> t){
+			Node<K, V> n = (Node<K, V>) t;
+			if (n.r0.isEmpty())
+				return n.l0;
+			return join(n.l0, n.k0, n.v0, withoutLast(n.r0));
+		}
+		
+		// the result of split: the entries of a tree below and above
+		// a key, and the Node holding the key itself (or null)
+		static class Split<K, V> {
+			FTree<K, V> below;
+			Node<K, V> found;
+			FTree<K, V> above;
+			
+			Split(FTree<K, V> below, Node<K, V> found, FTree<K, V> above){
+				this.below = below;
+				this.found = found;
+				this.above = above;
+			}
+		}
+		
+		// splits t around key, joining the pieces along the search path
+		static <K, V> Split<K, V> split(FTree<K, V> t, K key){
+			if (t.isEmpty())
+				return new Split<K, V>(t, null, t);
+			Node<K, V> n = (Node<K, V>) t;
+			int cmp = n.c.compare(key, n.k0);
+			if (cmp == 0)
+				return new Split<K, V>(n.l0, n, n.r0);
+			if (cmp < 0){
+				Split<K, V> s = split(n.l0, key);
+				s.above = join(s.above, n.k0, n.v0, n.r0);
+				return s;
+			}
+			Split<K, V> s = split(n.r0, key);
+			s.below = join(n.l0, n.k0, n.v0, s.below);
+			return s;
+		}
+		
+		// returns a tree holding the entries of both trees, taking the
+		// value from newer where both have a key
+		// subtrees of older that newer doesn't touch are shared, and
+		// the work is O(m lg(n/m + 1)) joins for m entries in newer
+		static <K, V> FTree<K, V> union(FTree<K, V> older, FTree<K, V> newer){
+			if (newer.isEmpty())
+				return older;
+			if (older.isEmpty())
+				return newer;
+			Node<K, V> n = (Node<K, V>) newer;
+			Split<K, V> s = split(older, n.k0);
+			FTree<K, V> left = union(s.below, n.l0);
+			FTree<K, V> right = union(s.above, n.r0);
+			return join(left, n.k0, n.v0, right);
+		}
+		
+		// copies the keys, in order, and their values into the arrays
+		void copyInto(final Object[] keys, final Object[] values){
+			this.forEachEntry(new BiConsumer<K, V>(){
+				int i = 0;
+				public void accept(K k, V v) {
+					keys[i] = k;
+					values[i] = v;
+					i = i + 1;
+				}
+			});
+		}
+		
+		// returns an immutable, array-backed copy of this tree laid out
+		// for fast lookups, in O(n) time
+		public FrozenFMap<K, V> freeze(){
+			Object[] keys = new Object[this.size()];
+			Object[] values = new Object[this.size()];
+			this.copyInto(keys, values);
+			return new FrozenFMap<K, V>(this.getComparator(), keys, values);
+		}
+		
+		// like freeze, but stores the keys as longs and searches them
+		// without touching key objects; throws IllegalArgumentException
+		// if the comparator does not order the keys as longs
+		public FrozenLongFMap<K, V> freeze(LongKeys<K> longKeys){
+			Object[] keys = new Object[this.size()];
+			Object[] values = new Object[this.size()];
+			this.copyInto(keys, values);
+			return new FrozenLongFMap<K, V>(
+					this.getComparator(), longKeys, keys, values);
+		}
+		
+		// the inverse of freeze: rebuilds a frozen map, whose accept
+		// builds an FTree with buildSorted, as an FTree, in O(n) time
+		static <K, V> FTree<K, V> thaw(FMap<K, V> frozen){
+			return (FTree<K, V>) frozen.accept(new Visitor<K, V>(){
+				public V visit(K key, V value) {
+					return value;
+				}
+			});
+		}
+		
+		// builds a red-black tree from keys[from..to) and their values,
+		// which must be sorted by c with no duplicates, in O(n) time
+		// the tree is as balanced as possible; its last, partly filled
+		// level is red and every other level is black
+		static <K, V> FTree<K, V> buildSorted(Comparator<? super K> c,
+				Object[] keys, Object[] values, int from, int to){
+			int redDepth = 0;
+			while ((2 << redDepth) - 1 <= to - from)
+				redDepth = redDepth + 1;
+			return buildSorted(new EmptyTree<K, V>(c), 
+					keys, values, from, to, 0, redDepth);
+		}
+		
+		// every empty subtree is the same immutable leaf
+		static <K, V> FTree<K, V> buildSorted(EmptyTree<K, V> leaf,
+				Object[] keys, Object[] values, int from, int to,
+				int depth, int redDepth){
+			if (from >= to)
+				return leaf;
+			int mid = (from + to) >>> 1;
+			FTree<K, V> left = buildSorted(
+					leaf, keys, values, from, mid, depth + 1, redDepth);
+			FTree<K, V> right = buildSorted(
+					leaf, keys, values, mid + 1, to, depth + 1, redDepth);
+			return new Node<K, V>((K) keys[mid], (V) values[mid], 
+					left, right, depth == redDepth);
+		}
+		
+		// like accept, but hands the entries to the visitor in ascending
+		// chunks of up to keys.length entries, using keys and values as
+		// the buffers; entries whose value object comes back unchanged
+		// are shared with this tree as in accept
+		public FTree<K, V> acceptBatched(BatchVisitor<K, V> avisitor, 
+				K[] keys, V[] values){
+			if (keys.length == 0 || keys.length != values.length)
+				throw new IllegalArgumentException();
+			Batcher<K, V> batcher = new Batcher<K, V>(
+					avisitor, keys, values, this.size);
+			this.forEachEntry(batcher);
+			batcher.flush();
+			return this.rebuild(new Results<V>(batcher.results));
+		}
+		
+		// starts the visitor on every entry, in order, and returns a
+		// future for the visited tree, which has the same shape as
+		// this one and is built once every value has arrived
+		// at most maxInFlight visits are incomplete at any time; the
+		// first ones start on the calling thread, and each later one is
+		// started when an earlier one completes, so this never waits
+		// a visit that throws or returns null fails the returned future
+		public CompletableFuture<FTree<K, V>> acceptAsync(
+				AsyncVisitor<K, V> avisitor, int maxInFlight){
+			if (maxInFlight < 1)
+				throw new IllegalArgumentException();
+			Object[] keys = new Object[this.size];
+			Object[] values = new Object[this.size];
+			this.copyInto(keys, values);
+			final Launcher<K, V> launcher = new Launcher<K, V>(
+					avisitor, keys, values, maxInFlight);
+			launcher.pump();
+			
+			final FTree<K, V> tree = this;
+			return launcher.launched.thenCompose(
+					new Function<Void, CompletableFuture<Void>>(){
+				public CompletableFuture<Void> apply(Void ignored) {
+					return CompletableFuture.allOf(launcher.futures);
+				}
+			}).thenApply(new Function<Void, FTree<K, V>>(){
+				public FTree<K, V> apply(Void ignored) {
+					Object[] results = new Object[launcher.futures.length];
+					for (int i = 0; i < results.length; i = i + 1)
+						results[i] = launcher.futures[i].join();
+					return tree.rebuild(new Results<V>(results));
+				}
+			});
+		}
+		
+		// starts the visits of acceptAsync, keeping at most maxInFlight
+		// of them incomplete
+		// a visit that completes calls pump to start the next one;
+		// only one thread pumps at a time, in a loop, so visits that
+		// complete at once don't recurse through pump
+		static class Launcher<K, V> {
+			AsyncVisitor<K, V> visitor;
+			Object[] keys;
+			Object[] values;
+			int maxInFlight;
+			CompletableFuture<V>[] futures;
+			// completed once every visit has started
+			CompletableFuture<Void> launched = new CompletableFuture<Void>();
+			int next = 0; // the next entry to visit
+			int inFlight = 0;
+			boolean pumping = false;
+			
+			Launcher(AsyncVisitor<K, V> visitor, Object[] keys, 
+					Object[] values, int maxInFlight){
+				this.visitor = visitor;
+				this.keys = keys;
+				this.values = values;
+				this.maxInFlight = maxInFlight;
+				this.futures = new CompletableFuture[keys.length];
+			}
+			
+			void pump(){
+				synchronized (this){
+					if (pumping)
+						return;
+					pumping = true;
+				}
+				while (true){
+					int i;
+					synchronized (this){
+						if (next == keys.length || inFlight == maxInFlight){
+							pumping = false;
+							if (next == keys.length)
+								launched.complete(null);
+							return;
+						}
+						i = next;
+						next = next + 1;
+						inFlight = inFlight + 1;
+					}
+					start(i);
+				}
+			}
+			
+			void start(int i){
+				CompletableFuture<V> future;
+				try {
+					future = visitor.visit((K) keys[i], (V) values[i]);
+					if (future == null)
+						throw new NullPointerException("visit returned null");
+				}
+				catch (RuntimeException e) {
+					future = new CompletableFuture<V>();
+					future.completeExceptionally(e);
+				}
+				futures[i] = future;
+				future.whenComplete(new BiConsumer<V, Throwable>(){
+					public void accept(V value, Throwable t) {
+						synchronized (Launcher.this){
+							inFlight = inFlight - 1;
+						}
+						pump();
+					}
+				});
+			}
+		}
+		
+		// runs a blocking visitor on the given executor, at most
+		// maxInFlight entries at a time (see above)
+		// meant for visitors that wait on I/O, where the number of
+		// visits in flight matters more than the number of cores;
+		// on JDKs with virtual threads, pass a virtual-thread executor
+		public CompletableFuture<FTree<K, V>> acceptAsync(
+				final Visitor<K, V> avisitor, final Executor executor, 
+				int maxInFlight){
+			return this.acceptAsync(new AsyncVisitor<K, V>(){
+				public CompletableFuture<V> visit(final K k, final V v) {
+					return CompletableFuture.supplyAsync(new Supplier<V>(){
+						public V get() {
+							return avisitor.visit(k, v);
+						}
+					}, executor);
+				}
+			}, maxInFlight);
+		}
+		
+		// passes the entries of this subtree to action in order
+		abstract void forEachEntry(BiConsumer<? super K, ? super V> action);
+		
+		// returns this subtree with its values replaced by the next
+		// values from results, in order
+		// subtrees whose value objects are all unchanged are shared
+		abstract FTree<K, V> rebuild(Results<V> results);
+		
+		// a sequence of values read in order by rebuild
+		static class Results<V> {
+			Object[] values;
+			int position = 0;
+			
+			Results(Object[] values){
+				this.values = values;
+			}
+			
+			V next(){
+				V value = (V) values[position];
+				position = position + 1;
+				return value;
+			}
+		}
+		
+		// collects entries into the buffers, calls the visitor each time
+		// they fill up, and keeps every returned value in results
+		static class Batcher<K, V> implements BiConsumer<K, V> {
+			BatchVisitor<K, V> visitor;
+			K[] keys;
+			V[] values;
+			int count = 0; // entries now in the buffers
+			Object[] results;
+			int position = 0; // next free result
+			
+			Batcher(BatchVisitor<K, V> visitor, K[] keys, V[] values, int size){
+				this.visitor = visitor;
+				this.keys = keys;
+				this.values = values;
+				this.results = new Object[size];
+			}
+			
+			public void accept(K key, V value){
+				keys[count] = key;
+				values[count] = value;
+				count = count + 1;
+				if (count == keys.length)
+					flush();
+			}
+			
+			void flush(){
+				if (count == 0)
+					return;
+				visitor.visit(keys, values, count);
+				for (int i = 0; i < count; i = i + 1){
+					results[position] = values[i];
+					position = position + 1;
+					keys[i] = null; // don't keep entries reachable
+					values[i] = null;
+				}
+				count = 0;
+			}
+		}
+		
+		// like accept, but first looks each subtree up in results,
+		// which maps input subtrees to the output subtrees a previous
+		// run produced for them; every newly visited Node is recorded
+		abstract FTree<K, V> acceptIncremental(Visitor<K, V> avisitor,
+				IdentityHashMap<FTree<K, V>, FTree<K, V>> results);
+		
+		// records that each Node of in produced the Node at the same
+		// position in out (the two trees must have the same shape)
+		static <K, V> void recordResults(FTree<K, V> in, FTree<K, V> out,
+				IdentityHashMap<FTree<K, V>, FTree<K, V>> results){
+			if (in.isEmpty())
+				return;
+			Node<K, V> inNode = (Node<K, V>) in;
+			Node<K, V> outNode = (Node<K, V>) out;
+			results.put(inNode, outNode);
+			recordResults(inNode.l0, outNode.l0, results);
+			recordResults(inNode.r0, outNode.r0, results);
+		}
+		
+		// applies one deterministic visitor to successive versions of
+		// an FTree, reusing the output subtree of every input subtree
+		// that was already visited in an earlier version
+		// so visiting a version that differs from an earlier one in
+		// a few keys costs O(changes * lg n) instead of O(n)
+		// results for old versions are dropped once they outnumber
+		// the Nodes of the latest version, which costs O(n) but
+		// happens at most once every n visited Nodes
+		public static class IncrementalAccept<K, V> {
+			
+			Visitor<K, V> visitor;
+			IdentityHashMap<FTree<K, V>, FTree<K, V>> results;
+			
+			public IncrementalAccept(Visitor<K, V> avisitor){
+				visitor = avisitor;
+				results = new IdentityHashMap<FTree<K, V>, FTree<K, V>>();
+			}
+			
+			public synchronized FTree<K, V> accept(FTree<K, V> input){
+				FTree<K, V> output = input.acceptIncremental(visitor, results);
+				if (results.size() > 2 * input.size() + 64){
+					results = new IdentityHashMap<FTree<K, V>, FTree<K, V>>();
+					recordResults(input, output, results);
+				}
+				return output;
+			}
+		}
+		
+		// returns the changes that turn this tree into other, in key
+		// order: entries only in other are ADDED, entries only in this
+		// tree are REMOVED, and keys whose values are not equal are
+		// CHANGED; keys are compared with this tree's comparator
+		// subtrees shared by the two trees are skipped without being
+		// walked, so for versions that share structure the cost grows
+		// with the number of changes rather than with the size
+		public Stream<Change<K, V>> diff(FTree<K, V> other){
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+					this.diffIterator(other), Spliterator.ORDERED), false);
+		}
+		
+		public Iterator<Change<K, V>> diffIterator(FTree<K, V> other){
+			return new DiffIterator<K, V>(this, other);
+		}
+		
+		// trees with the same comparator can be compared with diff,
+		// which skips their shared subtrees
+		@Override
+		public boolean equals(Object o){
+			if (o instanceof FTree && ((FTree<K, V>) o).c == this.c)
+				return !(this.diffIterator((FTree<K, V>) o).hasNext());
+			return super.equals(o);
+		}
+		
+		@Override
+		public int hashCode(){
+			return super.hashCode();
+		}
+		
+		// one difference between two trees, as reported by diff
+		public static class Change<K, V> {
+			public enum Kind { ADDED, REMOVED, CHANGED }
+			
+			Kind kind;
+			K key;
+			V oldValue; // null if ADDED
+			V newValue; // null if REMOVED
+			
+			Change(Kind kind, K key, V oldValue, V newValue){
+				this.kind = kind;
+				this.key = key;
+				this.oldValue = oldValue;
+				this.newValue = newValue;
+			}
+			
+			public Kind kind(){
+				return kind;
+			}
+			
+			public K key(){
+				return key;
+			}
+			
+			public V oldValue(){
+				return oldValue;
+			}
+			
+			public V newValue(){
+				return newValue;
+			}
+			
+			public String toString(){
+				return kind + " " + key;
+			}
+		}
+		
+		// an in-order walk over a tree that expands subtrees only when
+		// asked to, so a whole subtree can be skipped
+		// each stack entry is either a subtree still to be walked or
+		// a single Node whose own entry is next
+		static class Cursor<K, V> {
+			ArrayList<FTree<K, V>> trees = new ArrayList<FTree<K, V>>();
+			ArrayList<Boolean> entries = new ArrayList<Boolean>();
+			
+			Cursor(FTree<K, V> t){
+				push(t, false);
+			}
+			
+			void push(FTree<K, V> t, boolean entry){
+				if (!t.isEmpty()){
+					trees.add(t);
+					entries.add(entry);
+				}
+			}
+			
+			boolean isDone(){
+				return trees.isEmpty();
+			}
+			
+			FTree<K, V> top(){
+				return trees.get(trees.size() - 1);
+			}
+			
+			boolean topIsEntry(){
+				return entries.get(entries.size() - 1);
+			}
+			
+			FTree<K, V> pop(){
+				entries.remove(entries.size() - 1);
+				return trees.remove(trees.size() - 1);
+			}
+			
+			// replaces the subtree on top with its left subtree,
+			// its own entry, and its right subtree
+			void expand(){
+				Node<K, V> n = (Node<K, V>) pop();
+				push(n.r0, false);
+				push(n, true);
+				push(n.l0, false);
+			}
+		}
+		
+		static class DiffIterator<K, V> implements Iterator<Change<K, V>> {
+			Comparator<? super K> c;
+			Cursor<K, V> from;
+			Cursor<K, V> to;
+			Change<K, V> next;
+			
+			DiffIterator(FTree<K, V> from, FTree<K, V> to){
+				this.c = from.c;
+				if (from != to){
+					this.from = new Cursor<K, V>(from);
+					this.to = new Cursor<K, V>(to);
+					this.next = advance();
+				}
+			}
+			
+			public boolean hasNext(){
+				return next != null;
+			}
+			
+			public Change<K, V> next(){
+				if (next == null)
+					throw new NoSuchElementException();
+				Change<K, V> result = next;
+				next = advance();
+				return result;
+			}
+			
+			public void remove() {
+				String msg = "Remove method is unimplemented";
+				throw new UnsupportedOperationException(msg);
+			}
+			
+			// walks both cursors to the next difference, or returns null
+			Change<K, V> advance(){
+				while (true){
+					if (from.isDone() && to.isDone())
+						return null;
+					if (from.isDone()){
+						if (!to.topIsEntry()){
+							to.expand();
+							continue;
+						}
+						Node<K, V> n = (Node<K, V>) to.pop();
+						return new Change<K, V>(Change.Kind.ADDED, n.k0, null, n.v0);
+					}
+					if (to.isDone()){
+						if (!from.topIsEntry()){
+							from.expand();
+							continue;
+						}
+						Node<K, V> n = (Node<K, V>) from.pop();
+						return new Change<K, V>(Change.Kind.REMOVED, n.k0, n.v0, null);
+					}
+					
+					FTree<K, V> a = from.top();
+					FTree<K, V> b = to.top();
+					boolean aEntry = from.topIsEntry();
+					boolean bEntry = to.topIsEntry();
+					
+					if (!aEntry && !bEntry && a == b){ // shared subtree
+						from.pop();
+						to.pop();
+						continue;
+					}
+					// expand the larger subtree first, so that both walks
+					// reach shared subtrees at the same height
+					if (!aEntry && (bEntry || a.size >= b.size)){
+						from.expand();
+						continue;
+					}
+					if (!bEntry){
+						to.expand();
+						continue;
+					}
+					
+					Node<K, V> na = (Node<K, V>) a;
+					Node<K, V> nb = (Node<K, V>) b;
+					int cmp = c.compare(na.k0, nb.k0);
+					if (cmp < 0){
+						from.pop();
+						return new Change<K, V>(Change.Kind.REMOVED, na.k0, na.v0, null);
+					}
+					if (cmp > 0){
+						to.pop();
+						return new Change<K, V>(Change.Kind.ADDED, nb.k0, null, nb.v0);
+					}
+					from.pop();
+					to.pop();
+					if (na.v0 != nb.v0 && !(na.v0.equals(nb.v0)))
+						return new Change<K, V>(Change.Kind.CHANGED, nb.k0, na.v0, nb.v0);
+				}
+			}
+		}
+		
+		// the shape of an FTree, as computed by diagnostics()
+		// estimated bytes assume a 64-bit JVM with compressed oops
+		// and do not include the keys and values themselves
+		static class Diagnostics {
+			static final int NODE_BYTES = 40;
+			static final int EMPTY_BYTES = 24;
+			
+			int height = 0;
+			int blackHeight = -1; // -1 until the first leaf is reached
+			boolean blackBalanced = true;
+			int redNodes = 0;
+			int blackNodes = 0;
+			int emptyLeaves = 0;
+			int redViolations = 0; // red Nodes with a red child
+			ArrayList<Integer> depths = new ArrayList<Integer>();
+			
+			void node(int depth, boolean red){
+				if (red)
+					redNodes = redNodes + 1;
+				else
+					blackNodes = blackNodes + 1;
+				while (depths.size() <= depth)
+					depths.add(0);
+				depths.set(depth, depths.get(depth) + 1);
+				if (depth + 1 > height)
+					height = depth + 1;
+			}
+			
+			void leaf(int blacks){
+				emptyLeaves = emptyLeaves + 1;
+				if (blackHeight == -1)
+					blackHeight = blacks;
+				else if (blackHeight != blacks)
+					blackBalanced = false;
+			}
+			
+			// the number of Nodes on the longest root-to-leaf path
+			public int height(){
+				return height;
+			}
+			
+			// the number of black Nodes on every root-to-leaf path,
+			// or -1 if the paths disagree
+			public int blackHeight(){
+				if (blackBalanced)
+					return blackHeight;
+				return -1;
+			}
+			
+			// depthHistogram()[i] is the number of Nodes at depth i
+			public int[] depthHistogram(){
+				int[] result = new int[depths.size()];
+				for (int i = 0; i < result.length; i = i + 1)
+					result[i] = depths.get(i);
+				return result;
+			}
+			
+			public int redNodes(){
+				return redNodes;
+			}
+			
+			public int blackNodes(){
+				return blackNodes;
+			}
+			
+			// 0 for a valid red-black tree
+			public int redViolations(){
+				return redViolations;
+			}
+			
+			public long estimatedBytes(){
+				return ((long) (redNodes + blackNodes)) * NODE_BYTES
+						+ ((long) emptyLeaves) * EMPTY_BYTES;
+			}
+			
+			public String toString(){
+				return "{height " + height 
+						+ ", black-height " + blackHeight()
+						+ ", " + redNodes + " red"
+						+ ", " + blackNodes + " black"
+						+ ", ~" + estimatedBytes() + " bytes}";
+			}
 		}
 		
 		static class EmptyTree<K, V> extends FTree<K, V>{
@@ -187,10 +1205,24 @@ public abstract class FMap<K, V> implements Iterable<K>{
 
 			@Override
 			public String toString() {
-				System.out.println("EmptyNode " + printcolor());
 				return "{...(" + this.size() + " entries)...}";
 			}
 
+			@Override
+			void collect(Diagnostics d, int depth, int blacks) {
+				d.leaf(blacks);
+			}
+
+			@Override
+			void markNodes(IdentityHashMap<FTree<K, V>, Boolean> seen) {
+				seen.put(this, true);
+			}
+
+			@Override
+			int countShared(IdentityHashMap<FTree<K, V>, Boolean> seen) {
+				return 0;
+			}
+
 
 			@Override
 			ArrayList<K> addKeysToList(ArrayList<K> aList) {
@@ -209,9 +1241,75 @@ public abstract class FMap<K, V> implements Iterable<K>{
 				return this.c;
 			}
 
+			// empty trees are immutable, so the result can be this tree
 			@Override
 			public FMap<K, V> accept(Visitor<K, V> avisitor) {
-				return FMap.emptyMap(this.c);
+				return this;
+			}
+
+			@Override
+			FTree<K, V> acceptIncremental(Visitor<K, V> avisitor,
+					IdentityHashMap<FTree<K, V>, FTree<K, V>> results) {
+				return this;
+			}
+
+			@Override
+			public FTree<K, V> acceptRange(K lo, K hi, Visitor<K, V> avisitor) {
+				return this;
+			}
+
+			@Override
+			public long contentHash(EntryHasher<? super K, ? super V> h) {
+				return 0;
+			}
+
+			@Override
+			long hashAtLeast(K lo, EntryHasher<? super K, ? super V> h) {
+				return 0;
+			}
+
+			@Override
+			long hashBelow(K hi, EntryHasher<? super K, ? super V> h) {
+				return 0;
+			}
+
+			@Override
+			long hashBetween(K lo, K hi, EntryHasher<? super K, ? super V> h) {
+				return 0;
+			}
+
+			@Override
+			public int rank(K key) {
+				return 0;
+			}
+
+			@Override
+			public K select(int i) {
+				throw new IllegalArgumentException();
+			}
+
+			@Override
+			public K findFirst(BiPredicate<? super K, ? super V> p) {
+				return null;
+			}
+
+			@Override
+			public FTree<K, V> filter(BiPredicate<? super K, ? super V> p) {
+				return this;
+			}
+
+			@Override
+			public FTree<K, V> remove(K key) {
+				return this;
+			}
+
+			@Override
+			void forEachEntry(BiConsumer<? super K, ? super V> action) {
+			}
+
+			@Override
+			FTree<K, V> rebuild(Results<V> results) {
+				return this;
 			}
 		}
 		static class Node<K, V> extends FTree<K, V>{
@@ -245,8 +1343,9 @@ public abstract class FMap<K, V> implements Iterable<K>{
 					node = node.balance(true);
 				}
 				if (this.c.compare(key, k0) == 0){
+					// replacing a value keeps the color of the Node
 					node = new Node<K, V>(
-							key, value, l0, r0, true);
+							key, value, l0, r0, red);
 				}
 				if (this.c.compare(key, k0) > 0){	
 					 node = new Node<K, V>(
@@ -377,16 +1476,39 @@ public abstract class FMap<K, V> implements Iterable<K>{
 			}
 			
 
+			// does not walk the tree, so the output stays the same
+			// size no matter how large the tree is
+			// use diagnostics() to inspect the shape of the tree
 			@Override
 			public String toString() {
-				System.out.println("This Node: " + k0 + " " + v0 + " " + printcolor());
-				System.out.println(k0 + " Left Node: ");
-				l0.toString();
-				System.out.println(k0 + " Right Node: ");
-				r0.toString();
-				System.out.println("");
 				return "{...(" + this.size() + " entries)...}";
-				
+			}
+
+			@Override
+			void collect(Diagnostics d, int depth, int blacks) {
+				d.node(depth, red);
+				if (red && (l0.red || r0.red))
+					d.redViolations = d.redViolations + 1;
+				if (!red)
+					blacks = blacks + 1;
+				l0.collect(d, depth + 1, blacks);
+				r0.collect(d, depth + 1, blacks);
+			}
+
+			@Override
+			void markNodes(IdentityHashMap<FTree<K, V>, Boolean> seen) {
+				if (seen.containsKey(this)) // and so is its whole subtree
+					return;
+				seen.put(this, true);
+				l0.markNodes(seen);
+				r0.markNodes(seen);
+			}
+
+			@Override
+			int countShared(IdentityHashMap<FTree<K, V>, Boolean> seen) {
+				if (seen.containsKey(this))
+					return this.size;
+				return l0.countShared(seen) + r0.countShared(seen);
 			}
 
 			@Override
@@ -411,6 +1533,9 @@ public abstract class FMap<K, V> implements Iterable<K>{
 			// accept returns an FMap with key value pairs
 			// that are equal to 
 			// (originalkey, visitor.visit(originalkey, originalvalue)
+			// if the visitor returns the very same value object for
+			// every entry in this subtree, the subtree itself is returned,
+			// so only the paths to changed entries are copied
 			
 			@Override
 			public FMap<K, V> accept(Visitor<K, V> avisitor) {
@@ -419,6 +1544,9 @@ public abstract class FMap<K, V> implements Iterable<K>{
 				V value = avisitor.visit(k0, v0);
 				FTree<K, V> right = (FTree<K, V>) r0.accept(avisitor);
 				
+				if (left == l0 && value == v0 && right == r0)
+					return this;
+				
 				FMap<K, V> map = new Node<K, V>(
 						k0,
 						value,
@@ -428,6 +1556,163 @@ public abstract class FMap<K, V> implements Iterable<K>{
 						
 				return map;
 			}
+
+			@Override
+			FTree<K, V> acceptIncremental(Visitor<K, V> avisitor,
+					IdentityHashMap<FTree<K, V>, FTree<K, V>> results) {
+				
+				FTree<K, V> result = results.get(this);
+				if (result != null)
+					return result;
+				
+				FTree<K, V> left = l0.acceptIncremental(avisitor, results);
+				V value = avisitor.visit(k0, v0);
+				FTree<K, V> right = r0.acceptIncremental(avisitor, results);
+				
+				if (left == l0 && value == v0 && right == r0)
+					result = this;
+				else
+					result = new Node<K, V>(k0, value, left, right, red);
+				results.put(this, result);
+				return result;
+			}
+
+			@Override
+			public long contentHash(EntryHasher<? super K, ? super V> h) {
+				HashCache.Entry cached = HASHES.get(this, h);
+				if (cached != null)
+					return cached.value;
+				long value = l0.contentHash(h) + h.hash(k0, v0) 
+						+ r0.contentHash(h);
+				HASHES.put(this, h, value);
+				return value;
+			}
+
+			@Override
+			long hashAtLeast(K lo, EntryHasher<? super K, ? super V> h) {
+				if (this.c.compare(k0, lo) < 0)
+					return r0.hashAtLeast(lo, h);
+				return l0.hashAtLeast(lo, h) + h.hash(k0, v0) 
+						+ r0.contentHash(h);
+			}
+
+			@Override
+			long hashBelow(K hi, EntryHasher<? super K, ? super V> h) {
+				if (this.c.compare(k0, hi) >= 0)
+					return l0.hashBelow(hi, h);
+				return l0.contentHash(h) + h.hash(k0, v0) 
+						+ r0.hashBelow(hi, h);
+			}
+
+			@Override
+			long hashBetween(K lo, K hi, EntryHasher<? super K, ? super V> h) {
+				if (this.c.compare(k0, lo) < 0)
+					return r0.hashBetween(lo, hi, h);
+				if (this.c.compare(k0, hi) >= 0)
+					return l0.hashBetween(lo, hi, h);
+				return l0.hashAtLeast(lo, h) + h.hash(k0, v0) 
+						+ r0.hashBelow(hi, h);
+			}
+
+			@Override
+			public int rank(K key) {
+				if (this.c.compare(key, k0) < 0)
+					return l0.rank(key);
+				if (this.c.compare(key, k0) == 0)
+					return l0.size;
+				else // meaning, if (this.c.compare(key, k0) > 0)
+					return l0.size + 1 + r0.rank(key);
+			}
+
+			@Override
+			public K select(int i) {
+				if (i < l0.size)
+					return l0.select(i);
+				if (i == l0.size)
+					return k0;
+				return r0.select(i - l0.size - 1);
+			}
+
+			@Override
+			public FTree<K, V> acceptRange(K lo, K hi, Visitor<K, V> avisitor) {
+				
+				FTree<K, V> left = l0;
+				V value = v0;
+				FTree<K, V> right = r0;
+				
+				if (this.c.compare(k0, lo) < 0) // range is to the right
+					right = r0.acceptRange(lo, hi, avisitor);
+				else if (this.c.compare(k0, hi) >= 0) // range is to the left
+					left = l0.acceptRange(lo, hi, avisitor);
+				else {
+					left = l0.acceptRange(lo, hi, avisitor);
+					value = avisitor.visit(k0, v0);
+					right = r0.acceptRange(lo, hi, avisitor);
+				}
+				
+				if (left == l0 && value == v0 && right == r0)
+					return this;
+				return new Node<K, V>(k0, value, left, right, red);
+			}
+
+			@Override
+			public K findFirst(BiPredicate<? super K, ? super V> p) {
+				K found = l0.findFirst(p);
+				if (found != null)
+					return found;
+				if (p.test(k0, v0))
+					return k0;
+				return r0.findFirst(p);
+			}
+
+			@Override
+			public FTree<K, V> filter(BiPredicate<? super K, ? super V> p) {
+				FTree<K, V> left = l0.filter(p);
+				boolean keep = p.test(k0, v0);
+				FTree<K, V> right = r0.filter(p);
+				
+				if (keep && left == l0 && right == r0)
+					return this;
+				if (keep)
+					return join(left, k0, v0, right);
+				return join2(left, right);
+			}
+
+			@Override
+			public FTree<K, V> remove(K key) {
+				if (this.c.compare(key, k0) < 0){
+					FTree<K, V> left = l0.remove(key);
+					if (left == l0)
+						return this;
+					return join(left, k0, v0, r0);
+				}
+				if (this.c.compare(key, k0) == 0)
+					return join2(l0, r0);
+				else { // meaning, if (this.c.compare(key, k0) > 0)
+					FTree<K, V> right = r0.remove(key);
+					if (right == r0)
+						return this;
+					return join(l0, k0, v0, right);
+				}
+			}
+
+			@Override
+			void forEachEntry(BiConsumer<? super K, ? super V> action) {
+				l0.forEachEntry(action);
+				action.accept(k0, v0);
+				r0.forEachEntry(action);
+			}
+
+			@Override
+			FTree<K, V> rebuild(Results<V> results) {
+				FTree<K, V> left = l0.rebuild(results);
+				V value = results.next();
+				FTree<K, V> right = r0.rebuild(results);
+				
+				if (left == l0 && value == v0 && right == r0)
+					return this;
+				return new Node<K, V>(k0, value, left, right, red);
+			}
 		}
 	}
 	
@@ -548,6 +1833,93 @@ public abstract class FMap<K, V> implements Iterable<K>{
 		}		
 	}
 																			   
+	public static class Lazy<K, V> extends FMap<K, V>{
+		
+		// the map being viewed, and the visitor applied to its values
+		FMap<K, V> m0;
+		Visitor<K, V> visitor;
+		
+		// values already computed by the visitor, keyed the same way
+		// as m0 (by comparator for sorted maps, by equals otherwise)
+		Map<K, V> memo;
+		
+		public Lazy(FMap<K, V> map, Visitor<K, V> avisitor){
+			m0 = map;
+			visitor = avisitor;
+			if (map.isSorted())
+				memo = new TreeMap<K, V>(map.getComparator());
+			else
+				memo = new HashMap<K, V>();
+		}
+
+		public boolean isEmpty() {
+			return m0.isEmpty();
+		}
+
+		public int size() {
+			return m0.size();
+		}
+
+		public boolean containsKey(K key) {
+			return m0.containsKey(key);
+		}
+
+		// visits the key the first time it is looked up
+		// throws the same exception as m0.get for missing keys
+		public synchronized V get(K key) {
+			if (memo.containsKey(key))
+				return memo.get(key);
+			V value = visitor.visit(key, m0.get(key));
+			memo.put(key, value);
+			return value;
+		}
+
+		public String toString() {
+			return "{...(" + this.size() + " entries)...}";
+		}
+
+		// builds the visited map, reusing every value already computed
+		// if m0 is an FTree the result is an FTree as well
+		public FMap<K, V> materialize(){
+			return m0.accept(this.memoVisitor());
+		}
+		
+		// a visitor that returns the remembered value if there is one
+		// and calls the view's visitor otherwise
+		Visitor<K, V> memoVisitor(){
+			final Lazy<K, V> view = this;
+			return new Visitor<K, V>(){
+				public V visit(K k, V v) {
+					synchronized (view) {
+						if (view.memo.containsKey(k))
+							return view.memo.get(k);
+					}
+					return view.visitor.visit(k, v);
+				}
+			};
+		}
+
+		ArrayList<K> addKeysToList(ArrayList<K> aList) {
+			return m0.addKeysToList(aList);
+		}
+
+		@Override
+		boolean isSorted() {
+			return m0.isSorted();
+		}
+
+		@Override
+		Comparator<? super K> getComparator() {
+			return m0.getComparator();
+		}
+
+		// materializes and visits in the same pass
+		@Override
+		public FMap<K, V> accept(Visitor<K, V> avisitor) {
+			return m0.accept(new Chain<K, V>(this.memoVisitor(), avisitor));
+		}
+	}
+	
 	public static class Add<K, V> extends FMap<K, V>{
 		
 		// instance variables
@@ -0,0 +1,303 @@
+// An append-only file of FTree checkpoints that writes only what
+// changed.
+//
+// The file is a sequence of records.  A node record holds a key, a
+// value, a color and the file offsets of its two children (-1 for an
+// empty subtree); children are always written before their parent.
+// A root record holds the offset of a tree's root Node and the size
+// of the tree, and marks the end of a checkpoint.
+//
+// Since successive versions of an FTree share all but the paths that
+// changed, a checkpoint only writes the Nodes it has not written
+// before (recognized by reference), and its cost grows with the
+// amount of change rather than with the size of the map.  Records are
+// never rewritten, so every earlier checkpoint stays readable.
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+public class FMapCheckpoints<K, V> implements Closeable {
+
+	static final byte NODE = 1;
+	static final byte ROOT = 2;
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int PAGE_SIZE = 1 << 12;
+
+	FileChannel channel;
+	Comparator<? super K> c;
+	Codec<K> keys;
+	Codec<V> values;
+
+	long end = 0;  // the end of the last complete checkpoint
+	ArrayList<Long> roots = new ArrayList<Long>(); // root Node offsets
+	long lastBytes = 0; // bytes written by the last checkpoint
+
+	// the file offsets of Nodes already written (or read), so that
+	// later checkpoints can point at them instead of writing them again
+	IdentityHashMap<FMap.FTree<K, V>, Long> offsets =
+			new IdentityHashMap<FMap.FTree<K, V>, Long>();
+
+	// opens or creates the file; anything after the last complete
+	// checkpoint (say, from a crash in the middle of one) is discarded
+	public FMapCheckpoints(Path file, Comparator<? super K> c,
+			Codec<K> keys, Codec<V> values) throws IOException {
+		this.c = c;
+		this.keys = keys;
+		this.values = values;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		scan();
+		channel.truncate(end);
+	}
+
+	// the number of checkpoints in the file
+	public synchronized int checkpoints(){
+		return roots.size();
+	}
+
+	// the number of bytes the last checkpoint wrote
+	public synchronized long lastCheckpointBytes(){
+		return lastBytes;
+	}
+
+	// appends a checkpoint of tree and returns its number
+	// the checkpoint is forced to disk before this returns
+	public synchronized int checkpoint(FMap.FTree<K, V> tree) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		// offsets of the Nodes this checkpoint writes; they only join
+		// offsets once the records are safely on disk, so a failed
+		// checkpoint leaves nothing pointing at bytes never written
+		IdentityHashMap<FMap.FTree<K, V>, Long> added =
+				new IdentityHashMap<FMap.FTree<K, V>, Long>();
+		long root = write(tree, out, added);
+		out.writeByte(ROOT);
+		out.writeLong(root);
+		out.writeInt(tree.size());
+		out.flush();
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		long position = end;
+		while (buffer.hasRemaining())
+			position = position + channel.write(buffer, position);
+		channel.force(false);
+		lastBytes = position - end;
+		end = position;
+		roots.add(root);
+		offsets.putAll(added);
+
+		// forget Nodes of older versions once they outnumber the
+		// Nodes of this one; every Node of tree has an offset by now
+		if (offsets.size() > 2 * tree.size() + 64){
+			IdentityHashMap<FMap.FTree<K, V>, Long> old = offsets;
+			offsets = new IdentityHashMap<FMap.FTree<K, V>, Long>();
+			remember(tree, old);
+		}
+		return roots.size() - 1;
+	}
+
+	// writes the Nodes of t that have no offset yet, children first,
+	// records their offsets in added and returns the offset of t
+	// (-1 if t is empty)
+	long write(FMap.FTree<K, V> t, DataOutputStream out,
+			IdentityHashMap<FMap.FTree<K, V>, Long> added) throws IOException {
+		if (t.isEmpty())
+			return -1;
+		Long known = offsets.get(t);
+		if (known == null)
+			known = added.get(t);
+		if (known != null)
+			return known;
+		FMap.FTree.Node<K, V> n = (FMap.FTree.Node<K, V>) t;
+		long left = write(n.l0, out, added);
+		long right = write(n.r0, out, added);
+		long offset = end + out.size();
+		out.writeByte(NODE);
+		keys.write(n.k0, out);
+		values.write(n.v0, out);
+		out.writeBoolean(n.red);
+		out.writeLong(left);
+		out.writeLong(right);
+		added.put(n, offset);
+		return offset;
+	}
+
+	// copies the offsets of the Nodes of t from old into offsets
+	void remember(FMap.FTree<K, V> t, IdentityHashMap<FMap.FTree<K, V>, Long> old){
+		if (t.isEmpty() || offsets.containsKey(t))
+			return;
+		offsets.put(t, old.get(t));
+		FMap.FTree.Node<K, V> n = (FMap.FTree.Node<K, V>) t;
+		remember(n.l0, old);
+		remember(n.r0, old);
+	}
+
+	// reads back the given checkpoint
+	// starts at its root record and follows child offsets, so loading
+	// reads only the Nodes of that tree, however long the file is
+	public synchronized FMap.FTree<K, V> load(int checkpoint) throws IOException {
+		if (checkpoint < 0 || checkpoint >= roots.size())
+			throw new IllegalArgumentException();
+		PositionalInputStream reader = new PositionalInputStream(channel);
+		DataInputStream in = new DataInputStream(reader);
+		IdentityHashMap<FMap.FTree<K, V>, Long> loaded =
+				new IdentityHashMap<FMap.FTree<K, V>, Long>();
+		FMap.FTree<K, V> tree = read(roots.get(checkpoint), reader, in,
+				new FMap.FTree.EmptyTree<K, V>(c), loaded);
+		remember(tree, loaded);
+		return tree;
+	}
+
+	// reads the subtree whose root record is at offset, recording the
+	// offset of every Node it builds in loaded
+	FMap.FTree<K, V> read(long offset, PositionalInputStream reader,
+			DataInputStream in, FMap.FTree.EmptyTree<K, V> leaf,
+			IdentityHashMap<FMap.FTree<K, V>, Long> loaded) throws IOException {
+		if (offset == -1)
+			return leaf;
+		if (offset < 0 || offset >= end)
+			throw new IOException("missing node at " + offset);
+		reader.seek(offset);
+		if (in.readByte() != NODE)
+			throw new IOException("bad checkpoint record at " + offset);
+		K k = keys.read(in);
+		V v = values.read(in);
+		boolean red = in.readBoolean();
+		long left = in.readLong();
+		long right = in.readLong();
+		FMap.FTree<K, V> n = new FMap.FTree.Node<K, V>(k, v,
+				read(left, reader, in, leaf, loaded),
+				read(right, reader, in, leaf, loaded), red);
+		loaded.put(n, offset);
+		return n;
+	}
+
+	// reads records from the start of the file to find the checkpoints
+	// and the end of the last complete one
+	void scan() throws IOException {
+		CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(Channels.newInputStream(
+						channel.position(0)), BUFFER_SIZE));
+		DataInputStream in = new DataInputStream(counter);
+		try {
+			while (true){
+				byte tag = in.readByte();
+				if (tag == NODE){
+					keys.read(in);
+					values.read(in);
+					in.readBoolean();
+					in.readLong();
+					in.readLong();
+				}
+				else if (tag == ROOT){
+					long root = in.readLong();
+					in.readInt();
+					roots.add(root);
+					end = counter.count;
+				}
+				else
+					return; // a torn tail, e.g. zeros left by a crash
+			}
+		}
+		catch (EOFException | UTFDataFormatException e) {
+			// a checkpoint was cut short; ignore its records
+		}
+	}
+
+	// an input stream over the file from any position, reading a page
+	// at a time with positional reads
+	static class PositionalInputStream extends InputStream {
+		FileChannel channel;
+		ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+		long start = 0;    // the file offset of the page
+		long position = 0; // the file offset of the next byte
+
+		PositionalInputStream(FileChannel channel){
+			this.channel = channel;
+			page.limit(0);
+		}
+
+		void seek(long position){
+			this.position = position;
+		}
+
+		// makes the page hold position; false at the end of the file
+		boolean fill() throws IOException {
+			if (position >= start && position < start + page.limit())
+				return true;
+			page.clear();
+			channel.read(page, position);
+			page.flip();
+			start = position;
+			return page.limit() > 0;
+		}
+
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			int b = page.get((int) (position - start)) & 0xff;
+			position = position + 1;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, (int) (start + page.limit() - position));
+			page.get((int) (position - start), b, off, n);
+			position = position + n;
+			return n;
+		}
+	}
+
+	// an input stream that counts the bytes read through it
+	static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in){
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count = count + 1;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count = count + n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count = count + skipped;
+			return skipped;
+		}
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,107 @@
+// A mutable reference to an immutable FMap, shared between threads.
+//
+// Reads return the current map and never wait.  Writes compute a new
+// map from the current one and install it with compareAndSet,
+// retrying if another thread installed a different map first, so
+// the functions passed to update and compute may run more than once
+// and should have no side effects.
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+public class FMapRef<K, V> {
+
+	AtomicReference<FMap<K, V>> root;
+
+	public FMapRef(FMap<K, V> map){
+		root = new AtomicReference<FMap<K, V>>(map);
+	}
+
+	// returns the current map, which later writes never change
+	public FMap<K, V> snapshot(){
+		return root.get();
+	}
+
+	public V get(K key){
+		return root.get().get(key);
+	}
+
+	public boolean containsKey(K key){
+		return root.get().containsKey(key);
+	}
+
+	// replaces the map with f(map) and returns the new map
+	public FMap<K, V> update(UnaryOperator<FMap<K, V>> f){
+		while (true){
+			FMap<K, V> current = root.get();
+			FMap<K, V> next = f.apply(current);
+			if (next == current || root.compareAndSet(current, next))
+				return next;
+		}
+	}
+
+	public FMap<K, V> put(final K key, final V value){
+		return update(new UnaryOperator<FMap<K, V>>(){
+			public FMap<K, V> apply(FMap<K, V> m) {
+				return m.add(key, value);
+			}
+		});
+	}
+
+	public FMap<K, V> remove(final K key){
+		return update(new UnaryOperator<FMap<K, V>>(){
+			public FMap<K, V> apply(FMap<K, V> m) {
+				return m.remove(key);
+			}
+		});
+	}
+
+	// replaces the value at key with f(key, old value), where the old
+	// value is null if the key is missing; a null result removes the
+	// key
+	// returns the new value
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f){
+		while (true){
+			FMap<K, V> current = root.get();
+			V old = null;
+			if (current.containsKey(key))
+				old = current.get(key);
+			V value = f.apply(key, old);
+			FMap<K, V> next;
+			if (value == null)
+				next = current.remove(key);
+			else
+				next = current.add(key, value);
+			if (next == current || root.compareAndSet(current, next))
+				return value;
+		}
+	}
+
+	// runs body in a transaction and commits its writes atomically,
+	// returning what body returned
+	// if another thread has changed a key the transaction read, body
+	// runs again on a fresh snapshot, so it should have no side
+	// effects other than through the transaction
+	// transactions that touch disjoint keys never re-run each other:
+	// a failed compareAndSet only re-validates and re-applies
+	public <R> R transact(Function<FMapTransaction<K, V>, R> body){
+		while (true){
+			FMapTransaction<K, V> tx = new FMapTransaction<K, V>(root.get());
+			R result = body.apply(tx);
+			while (true){
+				FMap<K, V> current = root.get();
+				if (!tx.isValidIn(current))
+					break; // conflict, run body again
+				FMap<K, V> next = tx.applyTo(current);
+				if (next == current || root.compareAndSet(current, next))
+					return result;
+			}
+		}
+	}
+
+	public String toString(){
+		return root.get().toString();
+	}
+}
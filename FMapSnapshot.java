@@ -0,0 +1,95 @@
+// Writes an FTree to a file and reads it back.
+//
+// The file holds a header (a magic number, a format version and the
+// number of entries) followed by every entry in ascending key order,
+// each written with the given key and value codecs.  Reading streams
+// the entries back and builds the tree from them in O(n) with
+// FTree.buildSorted, rather than inserting them one by one.
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.function.BiConsumer;
+
+public class FMapSnapshot {
+
+	static final int MAGIC = 0x464d5331; // "FMS1"
+	static final int FORMAT = 1;
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int HEADER_BYTES = 12;
+
+	public static <K, V> void write(FMap.FTree<K, V> tree, Path file,
+			final Codec<K> keys, final Codec<V> values) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				Channels.newOutputStream(channel), BUFFER_SIZE));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(tree.size());
+			tree.forEachEntry(new BiConsumer<K, V>(){
+				public void accept(K k, V v) {
+					try {
+						keys.write(k, out);
+						values.write(v, out);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// reads a snapshot written by write into a tree ordered by c,
+	// which must order the keys the same way as the writer's tree
+	// throws IOException if the file is not a snapshot, is cut short,
+	// or its keys are not in ascending order
+	public static <K, V> FMap.FTree<K, V> read(Path file, 
+			Comparator<? super K> c, Codec<K> keys, Codec<V> values) 
+					throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel), BUFFER_SIZE));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+				throw new IOException("not an FMap snapshot: " + file);
+			// distinct keys have distinct encodings, so at most one
+			// entry can take no bytes; a larger count means the file is
+			// corrupt, and must not size the arrays below
+			int n = in.readInt();
+			if (n < 0 || n - 1 > channel.size() - HEADER_BYTES)
+				throw new StreamCorruptedException(
+						"bad entry count " + n + " in " + file);
+			Object[] ks = new Object[n];
+			Object[] vs = new Object[n];
+			for (int i = 0; i < n; i = i + 1){
+				K k = keys.read(in);
+				if (i > 0 && c.compare((K) ks[i - 1], k) >= 0)
+					throw new IOException("keys out of order in " + file);
+				ks[i] = k;
+				vs[i] = values.read(in);
+			}
+			return FMap.FTree.buildSorted(c, ks, vs, 0, n);
+		}
+		finally {
+			in.close();
+		}
+	}
+}
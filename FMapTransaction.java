@@ -0,0 +1,126 @@
+// A transaction over an FMapRef, run by FMapRef.transact.
+//
+// Reads come from the snapshot the transaction started with, plus
+// the transaction's own writes.  Writes are buffered until commit.
+// At commit, every key the transaction read must still be present
+// or absent, and hold the same value object or an equal one, in the
+// current map; otherwise the transaction is run again on a new
+// snapshot.  Equal values count because maps like OffHeapFMap and
+// MappedFMap decode a new value object on every get.
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+public class FMapTransaction<K, V> {
+
+	// what a read saw: whether the key was there, and its value
+	static class Read<V> {
+		boolean present;
+		V value;
+
+		Read(boolean present, V value){
+			this.present = present;
+			this.value = value;
+		}
+	}
+
+	// a buffered put, or remove if remove is true
+	static class Write<V> {
+		boolean remove;
+		V value;
+
+		Write(boolean remove, V value){
+			this.remove = remove;
+			this.value = value;
+		}
+	}
+
+	FMap<K, V> snapshot;
+	Map<K, Read<V>> reads;
+	Map<K, Write<V>> writes;
+
+	FMapTransaction(FMap<K, V> snapshot){
+		this.snapshot = snapshot;
+		this.reads = newKeyMap(snapshot);
+		this.writes = newKeyMap(snapshot);
+	}
+
+	// a java.util.Map that matches keys the way map does
+	static <K, T> Map<K, T> newKeyMap(FMap<K, ?> map){
+		if (map.isSorted())
+			return new TreeMap<K, T>(map.getComparator());
+		return new HashMap<K, T>();
+	}
+
+	public boolean containsKey(K key){
+		Write<V> w = writes.get(key);
+		if (w != null)
+			return !w.remove;
+		return read(key).present;
+	}
+
+	// throws IllegalArgumentException if the key is missing,
+	// like FMap.get
+	public V get(K key){
+		Write<V> w = writes.get(key);
+		if (w != null && !w.remove)
+			return w.value;
+		if (w == null){
+			Read<V> r = read(key);
+			if (r.present)
+				return r.value;
+		}
+		throw new IllegalArgumentException();
+	}
+
+	public void put(K key, V value){
+		writes.put(key, new Write<V>(false, value));
+	}
+
+	public void remove(K key){
+		writes.put(key, new Write<V>(true, null));
+	}
+
+	// reads the key from the snapshot and remembers what was seen
+	Read<V> read(K key){
+		Read<V> r = reads.get(key);
+		if (r == null){
+			if (snapshot.containsKey(key))
+				r = new Read<V>(true, snapshot.get(key));
+			else
+				r = new Read<V>(false, null);
+			reads.put(key, r);
+		}
+		return r;
+	}
+
+	// true if every read would see the same thing in map
+	boolean isValidIn(FMap<K, V> map){
+		for (Map.Entry<K, Read<V>> e : reads.entrySet()){
+			Read<V> r = e.getValue();
+			boolean present = map.containsKey(e.getKey());
+			if (present != r.present)
+				return false;
+			if (present && !sameValue(r.value, map.get(e.getKey())))
+				return false;
+		}
+		return true;
+	}
+
+	static boolean sameValue(Object read, Object current){
+		return read == current || Objects.equals(read, current);
+	}
+
+	// returns map with the buffered writes applied
+	FMap<K, V> applyTo(FMap<K, V> map){
+		for (Map.Entry<K, Write<V>> e : writes.entrySet()){
+			if (e.getValue().remove)
+				map = map.remove(e.getKey());
+			else
+				map = map.add(e.getKey(), e.getValue().value);
+		}
+		return map;
+	}
+}
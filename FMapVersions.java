@@ -0,0 +1,142 @@
+// A history of FTree versions, numbered 0, 1, 2, ... in the order
+// they are appended, each with a timestamp.
+//
+// Because successive versions of an FTree share most of their Nodes,
+// keeping many versions costs little more than keeping the newest one
+// plus the paths that changed.  Only the newest maxVersions versions
+// are kept; older roots are dropped so the Nodes only they use can be
+// garbage collected.
+
+import java.util.ArrayList;
+
+public class FMapVersions<K, V> {
+
+	// a ring buffer of the retained versions, oldest at first
+	FMap.FTree<K, V>[] maps;
+	long[] timestamps;
+	int first = 0;          // index of the oldest retained version
+	int count = 0;          // number of retained versions
+	long firstVersion = 0;  // number of the oldest retained version
+
+	public FMapVersions(int maxVersions){
+		if (maxVersions < 1)
+			throw new IllegalArgumentException();
+		maps = new FMap.FTree[maxVersions];
+		timestamps = new long[maxVersions];
+	}
+
+	// appends map as the newest version, stamped with the current time,
+	// and returns its version number
+	// the time is read under the lock and never goes below the newest
+	// timestamp, so racing appends and a clock that steps back still
+	// succeed
+	public synchronized long append(FMap.FTree<K, V> map){
+		long timestamp = System.currentTimeMillis();
+		if (count > 0)
+			timestamp = Math.max(timestamp, timestamps[index(count - 1)]);
+		return append(map, timestamp);
+	}
+
+	// appends map as the newest version and returns its version number
+	// timestamps must not decrease from one version to the next
+	// takes O(1) time, dropping the oldest version if the store is full
+	public synchronized long append(FMap.FTree<K, V> map, long timestamp){
+		if (count > 0 && timestamp < timestamps[index(count - 1)])
+			throw new IllegalArgumentException();
+		if (count == maps.length)
+			dropOldest();
+		maps[index(count)] = map;
+		timestamps[index(count)] = timestamp;
+		count = count + 1;
+		return firstVersion + count - 1;
+	}
+
+	// returns the given version, in O(1) time
+	// throws IllegalArgumentException if it is not retained
+	public synchronized FMap.FTree<K, V> get(long version){
+		if (version < firstVersion || version >= firstVersion + count)
+			throw new IllegalArgumentException();
+		return maps[index((int) (version - firstVersion))];
+	}
+
+	// returns the newest version whose timestamp is at most the given
+	// one, in O(lg v) time for v retained versions
+	// throws IllegalArgumentException if there is no such version
+	public synchronized FMap.FTree<K, V> asOf(long timestamp){
+		return maps[index(positionAsOf(timestamp))];
+	}
+
+	// returns the number of the version asOf(timestamp) would return
+	public synchronized long versionAsOf(long timestamp){
+		return firstVersion + positionAsOf(timestamp);
+	}
+
+	// binary search for the last position whose timestamp is at most
+	// the given one
+	int positionAsOf(long timestamp){
+		int lo = 0;
+		int hi = count; // answer is in [lo - 1, hi)
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if (timestamps[index(mid)] <= timestamp)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		if (lo == 0)
+			throw new IllegalArgumentException();
+		return lo - 1;
+	}
+
+	// returns the newest version, or null if there is none
+	public synchronized FMap.FTree<K, V> latest(){
+		if (count == 0)
+			return null;
+		return maps[index(count - 1)];
+	}
+
+	// the number of the oldest retained version
+	public synchronized long firstVersion(){
+		return firstVersion;
+	}
+
+	// the number of the newest version (firstVersion() - 1 if empty)
+	public synchronized long lastVersion(){
+		return firstVersion + count - 1;
+	}
+
+	// the number of retained versions
+	public synchronized int size(){
+		return count;
+	}
+
+	// drops every version that is no longer current at or after the
+	// given timestamp, keeping the one that is current at that time,
+	// so asOf(timestamp) still succeeds afterwards
+	public synchronized void dropBefore(long timestamp){
+		while (count > 1 && timestamps[index(1)] <= timestamp)
+			dropOldest();
+	}
+
+	// estimates the bytes taken by the Nodes of all retained versions,
+	// counting Nodes shared between versions once
+	// takes time proportional to the number of distinct Nodes
+	public synchronized long retainedBytes(){
+		ArrayList<FMap.FTree<K, V>> trees = new ArrayList<FMap.FTree<K, V>>();
+		for (int i = 0; i < count; i = i + 1)
+			trees.add(maps[index(i)]);
+		return FMap.FTree.retainedBytes(trees);
+	}
+
+	void dropOldest(){
+		maps[first] = null; // so its Nodes can be collected
+		first = (first + 1) % maps.length;
+		count = count - 1;
+		firstVersion = firstVersion + 1;
+	}
+
+	// the array index of the i-th oldest retained version
+	int index(int i){
+		return (first + i) % maps.length;
+	}
+}
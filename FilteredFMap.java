@@ -0,0 +1,93 @@
+// An FMap that consults a BloomFilter of its keys before looking a
+// key up, made by FMap.withBloomFilter.
+//
+// A key the filter rules out is answered in O(1) time without touching
+// the map.  The filter is built once, so add and remove return the
+// changed map without a filter.
+//
+// Keys must have equals and hashCode consistent with the comparator:
+// two keys the comparator calls equal must have equal hash codes, or
+// the filter may rule out a key the map holds.
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+
+public class FilteredFMap<K, V> extends FMap<K, V> {
+
+	FMap<K, V> map;
+	BloomFilter<K> filter;
+
+	FilteredFMap(FMap<K, V> map, double fpp){
+		this.map = map;
+		ArrayList<K> keys = map.addKeysToList(new ArrayList<K>());
+		this.filter = new BloomFilter<K>(keys.size(), fpp);
+		for (K k : keys)
+			filter.add(k);
+	}
+
+	// the map behind the filter
+	public FMap<K, V> unfiltered(){
+		return map;
+	}
+
+	public BloomFilter<K> filter(){
+		return filter;
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public boolean containsKey(K key) {
+		return filter.mightContain(key) && map.containsKey(key);
+	}
+
+	public V get(K key) {
+		if (!(filter.mightContain(key)))
+			throw new IllegalArgumentException();
+		return map.get(key);
+	}
+
+	public String toString() {
+		return map.toString();
+	}
+
+	@Override
+	public FMap<K, V> add(K key, V value){
+		return map.add(key, value);
+	}
+
+	@Override
+	public FMap<K, V> remove(K key){
+		return map.remove(key);
+	}
+
+	@Override
+	public FMap<K, V> accept(Visitor<K, V> avisitor) {
+		return map.accept(avisitor);
+	}
+
+	@Override
+	public Iterator<K> iterator() {
+		return map.iterator();
+	}
+
+	ArrayList<K> addKeysToList(ArrayList<K> aList) {
+		return map.addKeysToList(aList);
+	}
+
+	@Override
+	boolean isSorted() {
+		return map.isSorted();
+	}
+
+	@Override
+	Comparator<? super K> getComparator() {
+		return map.getComparator();
+	}
+}
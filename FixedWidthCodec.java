@@ -0,0 +1,19 @@
+// Interface for codecs whose values always take the same number of
+// bytes, so they can be stored in sorted arrays and read in place.
+
+import java.nio.ByteBuffer;
+
+public interface FixedWidthCodec<T> extends Codec<T> {
+
+    // The number of bytes every value takes.
+
+    public int width ();
+
+    // Writes t into the buffer at the given byte index.
+
+    public void put (ByteBuffer buffer, int index, T t);
+
+    // Reads the value at the given byte index.
+
+    public T get (ByteBuffer buffer, int index);
+}
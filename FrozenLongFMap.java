@@ -0,0 +1,200 @@
+// An immutable FMap over keys that can be stored as primitive longs,
+// made by FTree.freeze(LongKeys), with a k-ary search over flat arrays.
+//
+// The keys are laid out as an implicit search tree of blocks of
+// BLOCK keys, one 64-byte cache line each (an S-tree); block k's
+// children are blocks k * (BLOCK + 1) + 1 through k * (BLOCK + 1) +
+// BLOCK + 1.  Each step of a lookup counts the keys in one block that
+// are less than the target and descends into that child, so a lookup
+// touches about log n / log 9 cache lines and never dereferences a key.
+// The count is a fixed-length loop without branches that the JIT can
+// unroll into compare-and-add instructions.  The last block is padded
+// with Long.MAX_VALUE; padding slots have rank n.
+//
+// The keys are also kept in a sorted array, so iteration and select
+// are direct and the search can return ranks.
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class FrozenLongFMap<K, V> extends FMap<K, V> {
+
+	static final int BLOCK = 8;
+
+	int n;
+	int blocks;
+	long[] layout;   // blocks * BLOCK keys in S-tree order
+	int[] ranks;     // ranks[slot] is the rank of layout[slot]
+	long[] sorted;   // the keys in ascending order
+	Object[] values; // values[i] is the value of sorted[i]
+	LongKeys<K> keys;
+	Comparator<? super K> c;
+
+	// sortedKeys[0..n) must be sorted by c with no duplicates, and c
+	// must agree with the order of their longs
+	FrozenLongFMap(Comparator<? super K> c, LongKeys<K> keys,
+			Object[] sortedKeys, Object[] sortedValues){
+		this.c = c;
+		this.keys = keys;
+		this.n = sortedKeys.length;
+		this.sorted = new long[n];
+		for (int i = 0; i < n; i = i + 1){
+			sorted[i] = keys.toLong((K) sortedKeys[i]);
+			if (i > 0 && sorted[i - 1] >= sorted[i])
+				throw new IllegalArgumentException(
+						"comparator does not agree with long order");
+		}
+		this.values = sortedValues;
+		this.blocks = (n + BLOCK - 1) / BLOCK;
+		this.layout = new long[blocks * BLOCK];
+		this.ranks = new int[blocks * BLOCK];
+		fill(0, 0);
+	}
+
+	// fills block k and its descendants in order, starting from sorted
+	// index i, and returns the next sorted index
+	int fill(long k, int i){
+		if (k >= blocks)
+			return i;
+		int base = (int) k * BLOCK;
+		for (int j = 0; j < BLOCK; j = j + 1){
+			i = fill(k * (BLOCK + 1) + j + 1, i);
+			if (i < n){
+				layout[base + j] = sorted[i];
+				ranks[base + j] = i;
+				i = i + 1;
+			}
+			else {
+				layout[base + j] = Long.MAX_VALUE;
+				ranks[base + j] = n;
+			}
+		}
+		return fill(k * (BLOCK + 1) + BLOCK + 1, i);
+	}
+
+	// the rank of the least key >= x, or n if every key is less
+	int lowerBound(long x){
+		long k = 0;
+		int rank = n;
+		while (k < blocks){
+			int base = (int) k * BLOCK;
+			int i = 0;
+			for (int j = 0; j < BLOCK; j = j + 1)
+				i = i + (layout[base + j] < x ? 1 : 0);
+			if (i < BLOCK)
+				rank = ranks[base + i];
+			k = k * (BLOCK + 1) + i + 1;
+		}
+		return rank;
+	}
+
+	// the rank of x, or -1 if it is missing
+	int indexOf(long x){
+		int i = lowerBound(x);
+		if (i < n && sorted[i] == x)
+			return i;
+		return -1;
+	}
+
+	public boolean isEmpty() {
+		return n == 0;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public boolean containsKey(K key) {
+		return indexOf(keys.toLong(key)) >= 0;
+	}
+
+	public V get(K key) {
+		return getLong(keys.toLong(key));
+	}
+
+	// like containsKey, without boxing the key
+	public boolean containsLong(long key){
+		return indexOf(key) >= 0;
+	}
+
+	// like get, without boxing the key
+	public V getLong(long key){
+		int i = indexOf(key);
+		if (i < 0)
+			throw new IllegalArgumentException();
+		return (V) values[i];
+	}
+
+	// the number of keys less than key
+	public int rank(K key){
+		return lowerBound(keys.toLong(key));
+	}
+
+	// the key at index i in key order, 0 <= i < size()
+	public K select(int i){
+		if (i < 0 || i >= n)
+			throw new IllegalArgumentException();
+		return keys.fromLong(sorted[i]);
+	}
+
+	public String toString() {
+		return "{...(" + this.size() + " entries)...}";
+	}
+
+	// the keys in ascending order
+	@Override
+	public Iterator<K> iterator() {
+		return new Iterator<K>(){
+			int i = 0;
+			public boolean hasNext() {
+				return i < n;
+			}
+			public K next() {
+				if (i >= n)
+					throw new NoSuchElementException();
+				i = i + 1;
+				return keys.fromLong(sorted[i - 1]);
+			}
+			public void remove() {
+				String msg = "Remove method is unimplemented";
+				throw new UnsupportedOperationException(msg);
+			}
+		};
+	}
+
+	// returns the entries as an FTree again, in O(n) time
+	public FMap.FTree<K, V> thaw(){
+		return FMap.FTree.thaw(this);
+	}
+
+	// returns an FTree of the visited entries, built in O(n)
+	@Override
+	public FMap.FTree<K, V> accept(Visitor<K, V> avisitor) {
+		Object[] ks = new Object[n];
+		Object[] vs = new Object[n];
+		for (int i = 0; i < n; i = i + 1){
+			K k = keys.fromLong(sorted[i]);
+			ks[i] = k;
+			vs[i] = avisitor.visit(k, (V) values[i]);
+		}
+		return FMap.FTree.buildSorted(c, ks, vs, 0, n);
+	}
+
+	ArrayList<K> addKeysToList(ArrayList<K> aList) {
+		for (int i = 0; i < n; i = i + 1)
+			aList.add(keys.fromLong(sorted[i]));
+		return aList;
+	}
+
+	@Override
+	boolean isSorted() {
+		return true;
+	}
+
+	@Override
+	Comparator<? super K> getComparator() {
+		return c;
+	}
+}
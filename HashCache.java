@@ -0,0 +1,101 @@
+// The content hashes of FTree Nodes, kept beside the Nodes rather
+// than in them, so that trees which are never hashed pay nothing.
+//
+// Entries are found by the identity of the Node and by the (equal)
+// hasher the hash was computed with.  Each entry holds its Node
+// weakly, so caching a hash never keeps a Node alive; entries whose
+// Nodes have been collected are dropped on the next access.
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+public class HashCache {
+
+	static final int INITIAL_CAPACITY = 64;
+
+	// a cached hash of one Node under one hasher
+	static class Entry extends WeakReference<Object> {
+		final int slot; // the identity hash of the Node
+		final EntryHasher<?, ?> hasher;
+		final long value;
+		Entry next;
+
+		Entry(Object node, ReferenceQueue<Object> queue,
+				EntryHasher<?, ?> hasher, long value, Entry next){
+			super(node, queue);
+			this.slot = System.identityHashCode(node);
+			this.hasher = hasher;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	Entry[] table = new Entry[INITIAL_CAPACITY];
+	int size = 0;
+	ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+	// the entry for node under hasher, or null if none is cached
+	synchronized Entry get(Object node, EntryHasher<?, ?> hasher){
+		expunge();
+		int slot = System.identityHashCode(node);
+		for (Entry e = table[index(slot, table.length)]; e != null; e = e.next)
+			if (e.get() == node && e.hasher.equals(hasher))
+				return e;
+		return null;
+	}
+
+	synchronized void put(Object node, EntryHasher<?, ?> hasher, long value){
+		expunge();
+		if (size >= table.length - table.length / 4)
+			resize();
+		int i = index(System.identityHashCode(node), table.length);
+		table[i] = new Entry(node, collected, hasher, value, table[i]);
+		size = size + 1;
+	}
+
+	// the number of cached hashes whose Nodes may still be alive
+	synchronized int size(){
+		expunge();
+		return size;
+	}
+
+	static int index(int slot, int length){
+		return (slot ^ (slot >>> 16)) & (length - 1);
+	}
+
+	void resize(){
+		Entry[] old = table;
+		table = new Entry[old.length * 2];
+		for (int i = 0; i < old.length; i = i + 1){
+			Entry e = old[i];
+			while (e != null){
+				Entry next = e.next;
+				int j = index(e.slot, table.length);
+				e.next = table[j];
+				table[j] = e;
+				e = next;
+			}
+		}
+	}
+
+	// unlinks the entries whose Nodes have been collected
+	void expunge(){
+		Object ref;
+		while ((ref = collected.poll()) != null){
+			Entry dead = (Entry) ref;
+			int i = index(dead.slot, table.length);
+			Entry prev = null;
+			for (Entry e = table[i]; e != null; e = e.next){
+				if (e == dead){
+					if (prev == null)
+						table[i] = e.next;
+					else
+						prev.next = e.next;
+					size = size - 1;
+					break;
+				}
+				prev = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,295 @@
+// A persistent sorted map that answers get and containsKey from a hash
+// index, made by FMap.emptyHashedMap.
+//
+// Every map is an FTree, which gives the order, ranges and ranks, and
+// a hash array mapped trie (HAMT) over the same entries, which finds a
+// key in about log32 n steps by its hash code instead of lg n
+// comparisons.  add and remove update both and share everything else
+// with the old map, so both stay persistent.
+//
+// Keys must have equals and hashCode consistent with the comparator.
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+
+public class HashedFMap<K, V> extends FMap<K, V> {
+
+	FMap.FTree<K, V> tree;
+	HNode<K, V> index; // null when empty
+
+	HashedFMap(FMap.FTree<K, V> tree, HNode<K, V> index){
+		this.tree = tree;
+		this.index = index;
+	}
+
+	// the entries as an FTree, for ordered and range operations
+	public FMap.FTree<K, V> sorted(){
+		return tree;
+	}
+
+	static int hash(Object key){
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	public boolean isEmpty() {
+		return tree.isEmpty();
+	}
+
+	public int size() {
+		return tree.size();
+	}
+
+	public boolean containsKey(K key) {
+		return index != null && index.find(hash(key), 0, key) != NOT_FOUND;
+	}
+
+	public V get(K key) {
+		if (index == null)
+			throw new IllegalArgumentException();
+		Object v = index.find(hash(key), 0, key);
+		if (v == NOT_FOUND)
+			throw new IllegalArgumentException();
+		return (V) v;
+	}
+
+	public String toString() {
+		return "{...(" + this.size() + " entries)...}";
+	}
+
+	@Override
+	public HashedFMap<K, V> add(K key, V value){
+		HNode<K, V> i;
+		if (index == null)
+			i = new BitmapNode<K, V>(0, new Object[0]);
+		else
+			i = index;
+		return new HashedFMap<K, V>(tree.add(key, value), 
+				i.put(hash(key), 0, key, value));
+	}
+
+	@Override
+	public HashedFMap<K, V> remove(K key){
+		if (!(this.containsKey(key)))
+			return this;
+		return new HashedFMap<K, V>(tree.remove(key), 
+				index.remove(hash(key), 0, key));
+	}
+
+	// the visited tree shares what it can with this one; the index
+	// is rebuilt from it
+	@Override
+	public HashedFMap<K, V> accept(Visitor<K, V> avisitor) {
+		FMap.FTree<K, V> visited = (FMap.FTree<K, V>) tree.accept(avisitor);
+		if (visited == tree)
+			return this;
+		final HNode<K, V>[] i = new HNode[] { null };
+		visited.forEachEntry(new BiConsumer<K, V>(){
+			public void accept(K k, V v) {
+				if (i[0] == null)
+					i[0] = new BitmapNode<K, V>(0, new Object[0]);
+				i[0] = i[0].put(hash(k), 0, k, v);
+			}
+		});
+		return new HashedFMap<K, V>(visited, i[0]);
+	}
+
+	@Override
+	public Iterator<K> iterator() {
+		return tree.iterator();
+	}
+
+	ArrayList<K> addKeysToList(ArrayList<K> aList) {
+		return tree.addKeysToList(aList);
+	}
+
+	@Override
+	boolean isSorted() {
+		return true;
+	}
+
+	@Override
+	Comparator<? super K> getComparator() {
+		return tree.getComparator();
+	}
+
+	// what find returns for a missing key
+	static final Object NOT_FOUND = new Object();
+
+	// a node of the trie; each level uses the next 5 bits of the hash
+	static abstract class HNode<K, V> {
+
+		// the value of key, or NOT_FOUND
+		abstract Object find(int hash, int shift, K key);
+
+		// a node holding the same entries and (key, value)
+		abstract HNode<K, V> put(int hash, int shift, K key, V value);
+
+		// a node holding the same entries but key, or null if none
+		// are left
+		abstract HNode<K, V> remove(int hash, int shift, K key);
+	}
+
+	// a node with a slot for each 1 bit of its bitmap, in bit order;
+	// slot i is array[2i] and array[2i + 1], either a key and its value
+	// or null and the child node
+	static class BitmapNode<K, V> extends HNode<K, V> {
+		int bitmap;
+		Object[] array;
+
+		BitmapNode(int bitmap, Object[] array){
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		int slot(int bit){
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		Object find(int hash, int shift, K key){
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0)
+				return NOT_FOUND;
+			int i = 2 * slot(bit);
+			Object k = array[i];
+			if (k == null)
+				return ((HNode<K, V>) array[i + 1]).find(hash, shift + 5, key);
+			if (key.equals(k))
+				return array[i + 1];
+			return NOT_FOUND;
+		}
+
+		HNode<K, V> put(int hash, int shift, K key, V value){
+			int bit = 1 << ((hash >>> shift) & 31);
+			int i = 2 * slot(bit);
+			if ((bitmap & bit) == 0){
+				Object[] a = new Object[array.length + 2];
+				System.arraycopy(array, 0, a, 0, i);
+				a[i] = key;
+				a[i + 1] = value;
+				System.arraycopy(array, i, a, i + 2, array.length - i);
+				return new BitmapNode<K, V>(bitmap | bit, a);
+			}
+			Object k = array[i];
+			Object v = array[i + 1];
+			if (k == null){
+				HNode<K, V> child = (HNode<K, V>) v;
+				HNode<K, V> newChild = child.put(hash, shift + 5, key, value);
+				if (newChild == child)
+					return this;
+				return with(i, null, newChild);
+			}
+			if (key.equals(k)){
+				if (v == value)
+					return this;
+				return with(i, k, value);
+			}
+			return with(i, null, pair(shift + 5, (K) k, (V) v, key, value));
+		}
+
+		// a copy with slot i replaced
+		BitmapNode<K, V> with(int i, Object k, Object v){
+			Object[] a = array.clone();
+			a[i] = k;
+			a[i + 1] = v;
+			return new BitmapNode<K, V>(bitmap, a);
+		}
+
+		// a node holding two entries that agree in the hash bits
+		// below shift
+		HNode<K, V> pair(int shift, K k1, V v1, K k2, V v2){
+			int h1 = hash(k1);
+			int h2 = hash(k2);
+			if (h1 == h2)
+				return new CollisionNode<K, V>(h1, new Object[] {k1, v1, k2, v2});
+			return new BitmapNode<K, V>(0, new Object[0])
+					.put(h1, shift, k1, v1).put(h2, shift, k2, v2);
+		}
+
+		HNode<K, V> remove(int hash, int shift, K key){
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0)
+				return this;
+			int i = 2 * slot(bit);
+			Object k = array[i];
+			if (k == null){
+				HNode<K, V> child = (HNode<K, V>) array[i + 1];
+				HNode<K, V> newChild = child.remove(hash, shift + 5, key);
+				if (newChild == child)
+					return this;
+				if (newChild != null)
+					return with(i, null, newChild);
+			}
+			else if (!(key.equals(k)))
+				return this;
+			if (bitmap == bit)
+				return null;
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(array, 0, a, 0, i);
+			System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+			return new BitmapNode<K, V>(bitmap & ~bit, a);
+		}
+	}
+
+	// the entries whose keys all have the same hash, as key, value pairs
+	static class CollisionNode<K, V> extends HNode<K, V> {
+		int hash;
+		Object[] array;
+
+		CollisionNode(int hash, Object[] array){
+			this.hash = hash;
+			this.array = array;
+		}
+
+		int indexOf(K key){
+			for (int i = 0; i < array.length; i = i + 2)
+				if (key.equals(array[i]))
+					return i;
+			return -1;
+		}
+
+		Object find(int hash, int shift, K key){
+			int i = indexOf(key);
+			if (i < 0)
+				return NOT_FOUND;
+			return array[i + 1];
+		}
+
+		HNode<K, V> put(int hash, int shift, K key, V value){
+			if (hash != this.hash){
+				// the keys part ways below here
+				BitmapNode<K, V> n = new BitmapNode<K, V>(
+						1 << ((this.hash >>> shift) & 31), new Object[] {null, this});
+				return n.put(hash, shift, key, value);
+			}
+			int i = indexOf(key);
+			Object[] a;
+			if (i < 0){
+				a = new Object[array.length + 2];
+				System.arraycopy(array, 0, a, 0, array.length);
+				i = array.length;
+				a[i] = key;
+			}
+			else if (array[i + 1] == value)
+				return this;
+			else
+				a = array.clone();
+			a[i + 1] = value;
+			return new CollisionNode<K, V>(hash, a);
+		}
+
+		HNode<K, V> remove(int hash, int shift, K key){
+			int i = indexOf(key);
+			if (i < 0)
+				return this;
+			if (array.length == 2)
+				return null;
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(array, 0, a, 0, i);
+			System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+			return new CollisionNode<K, V>(hash, a);
+		}
+	}
+}
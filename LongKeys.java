@@ -0,0 +1,37 @@
+// Interface for keys that can be stored as primitive longs.
+//
+// toLong must be one-to-one and must order keys the same way as the
+// map's comparator, so that keys can be compared as longs.
+
+public interface LongKeys<K> {
+
+    // Returns the long that stands for key.
+
+    public long toLong (K key);
+
+    // Returns the key that toLong maps to l.
+
+    public K fromLong (long l);
+
+    // Long keys in their natural order.
+
+    public static final LongKeys<Long> LONG = new LongKeys<Long>() {
+            public long toLong (Long key) {
+                return key;
+            }
+            public Long fromLong (long l) {
+                return l;
+            }
+        };
+
+    // Integer keys in their natural order.
+
+    public static final LongKeys<Integer> INTEGER = new LongKeys<Integer>() {
+            public long toLong (Integer key) {
+                return key;
+            }
+            public Integer fromLong (long l) {
+                return (int) l;
+            }
+        };
+}
@@ -0,0 +1,350 @@
+// A read-only FMap that reads its entries straight out of a
+// memory-mapped file.
+//
+// The file holds a header (a magic number, a format version, the number
+// of entries n and the key width w), then the n keys in ascending order
+// as a fixed-width array of w-byte keys, then n + 1 offsets into the
+// value heap (value i is the bytes from offset i up to offset i + 1),
+// then the value heap.  Opening the file maps it and reads only the
+// header; get and containsKey binary-search the mapped keys and decode
+// only the value they return, and the pages are shared by every JVM on
+// the host that maps the same file.
+//
+// The key and offset sections must each be smaller than 2 GB, the most
+// a single mapping can hold.  The value heap may be larger: it is
+// mapped as a run of 1 GB regions, and a value's offset picks its
+// region (a value may run on into the next one).
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+public class MappedFMap<K, V> extends FMap<K, V> {
+
+	static final int MAGIC = 0x464d4d31; // "FMM1"
+	static final int FORMAT = 1;
+	static final int HEADER_BYTES = 16;
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int REGION_SHIFT = 30; // 1 GB heap regions
+
+	int n;
+	int width;
+	ByteBuffer keyArray;
+	ByteBuffer offsetArray;
+	ByteBuffer[] heap; // region r holds heap bytes from r << regionShift
+	int regionShift;
+	Comparator<? super K> c;
+	FixedWidthCodec<K> keys;
+	Codec<V> values;
+
+	MappedFMap(int n, int width, ByteBuffer keyArray, ByteBuffer offsetArray,
+			ByteBuffer[] heap, int regionShift, Comparator<? super K> c, 
+			FixedWidthCodec<K> keys, Codec<V> values){
+		this.n = n;
+		this.width = width;
+		this.keyArray = keyArray;
+		this.offsetArray = offsetArray;
+		this.heap = heap;
+		this.regionShift = regionShift;
+		this.c = c;
+		this.keys = keys;
+		this.values = values;
+	}
+
+	// writes tree to file in the format described above
+	// keys.write must write exactly keys.width() bytes, in the same
+	// layout keys.get reads
+	public static <K, V> void write(FMap.FTree<K, V> tree, Path file,
+			final FixedWidthCodec<K> keys, final Codec<V> values)
+					throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				Channels.newOutputStream(channel), BUFFER_SIZE));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(tree.size());
+			out.writeInt(keys.width());
+
+			// the keys
+			tree.forEachEntry(new BiConsumer<K, V>(){
+				public void accept(K k, V v) {
+					try {
+						keys.write(k, out);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+
+			// the offsets, found by encoding each value into a counter
+			final ByteCounter counter = new ByteCounter();
+			final DataOutputStream counted = new DataOutputStream(counter);
+			out.writeLong(0);
+			tree.forEachEntry(new BiConsumer<K, V>(){
+				public void accept(K k, V v) {
+					try {
+						values.write(v, counted);
+						counted.flush();
+						out.writeLong(counter.count);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+
+			// the value heap
+			tree.forEachEntry(new BiConsumer<K, V>(){
+				public void accept(K k, V v) {
+					try {
+						values.write(v, out);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// maps a file written by write; c must order the keys the same
+	// way as the tree that was written
+	public static <K, V> MappedFMap<K, V> open(Path file, 
+			Comparator<? super K> c, FixedWidthCodec<K> keys, Codec<V> values)
+					throws IOException {
+		return open(file, c, keys, values, REGION_SHIFT);
+	}
+
+	// like open, but maps the heap in regions of 1 << regionShift bytes
+	static <K, V> MappedFMap<K, V> open(Path file, Comparator<? super K> c, 
+			FixedWidthCodec<K> keys, Codec<V> values, int regionShift)
+					throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+			if (fileSize < HEADER_BYTES)
+				throw new IOException("not a mapped FMap: " + file);
+			ByteBuffer header = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			int n = header.getInt(8);
+			int width = header.getInt(12);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT
+					|| n < 0 || width != keys.width())
+				throw new IOException("not a mapped FMap: " + file);
+
+			long keyBytes = ((long) n) * width;
+			long offsetBytes = ((long) n + 1) * 8;
+			long heapStart = HEADER_BYTES + keyBytes + offsetBytes;
+			long heapBytes = fileSize - heapStart;
+			if (heapBytes < 0)
+				throw new IOException("truncated mapped FMap: " + file);
+			if (keyBytes > Integer.MAX_VALUE || offsetBytes > Integer.MAX_VALUE)
+				throw new IOException("mapped FMap section over 2 GB: " + file);
+
+			long regionBytes = 1L << regionShift;
+			ByteBuffer[] heap = new ByteBuffer[
+					(int) ((heapBytes + regionBytes - 1) >>> regionShift)];
+			for (int r = 0; r < heap.length; r = r + 1){
+				long start = ((long) r) << regionShift;
+				heap[r] = channel.map(FileChannel.MapMode.READ_ONLY, 
+						heapStart + start, 
+						Math.min(regionBytes, heapBytes - start));
+			}
+
+			return new MappedFMap<K, V>(n, width,
+					channel.map(FileChannel.MapMode.READ_ONLY, 
+							HEADER_BYTES, keyBytes),
+					channel.map(FileChannel.MapMode.READ_ONLY, 
+							HEADER_BYTES + keyBytes, offsetBytes),
+					heap, regionShift, c, keys, values);
+		}
+		finally {
+			channel.close(); // the mappings stay valid
+		}
+	}
+
+	// the key at index i
+	K keyAt(int i){
+		return keys.get(keyArray, i * width);
+	}
+
+	// decodes the value at index i from the heap
+	V valueAt(int i){
+		HeapInputStream value = new HeapInputStream(heap, regionShift,
+				offsetArray.getLong(i * 8), offsetArray.getLong((i + 1) * 8));
+		try {
+			return values.read(new DataInputStream(value));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// the index of key, or -1 if it is missing
+	int indexOf(K key){
+		int lo = 0;
+		int hi = n;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int cmp = c.compare(keyAt(mid), key);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	public boolean isEmpty() {
+		return n == 0;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public boolean containsKey(K key) {
+		return indexOf(key) >= 0;
+	}
+
+	public V get(K key) {
+		int i = indexOf(key);
+		if (i < 0)
+			throw new IllegalArgumentException();
+		return valueAt(i);
+	}
+
+	public String toString() {
+		return "{...(" + this.size() + " entries)...}";
+	}
+
+	// the keys in ascending order, read from the mapped array
+	@Override
+	public Iterator<K> iterator() {
+		return new Iterator<K>(){
+			int i = 0;
+			public boolean hasNext() {
+				return i < n;
+			}
+			public K next() {
+				if (i >= n)
+					throw new NoSuchElementException();
+				i = i + 1;
+				return keyAt(i - 1);
+			}
+			public void remove() {
+				String msg = "Remove method is unimplemented";
+				throw new UnsupportedOperationException(msg);
+			}
+		};
+	}
+
+	// returns an on-heap FTree of the visited entries, built in O(n)
+	@Override
+	public FMap<K, V> accept(Visitor<K, V> avisitor) {
+		Object[] ks = new Object[n];
+		Object[] vs = new Object[n];
+		for (int i = 0; i < n; i = i + 1){
+			K k = keyAt(i);
+			ks[i] = k;
+			vs[i] = avisitor.visit(k, valueAt(i));
+		}
+		return FMap.FTree.buildSorted(c, ks, vs, 0, n);
+	}
+
+	ArrayList<K> addKeysToList(ArrayList<K> aList) {
+		for (int i = 0; i < n; i = i + 1)
+			aList.add(keyAt(i));
+		return aList;
+	}
+
+	@Override
+	boolean isSorted() {
+		return true;
+	}
+
+	@Override
+	Comparator<? super K> getComparator() {
+		return c;
+	}
+
+	// an output stream that only counts the bytes written to it
+	static class ByteCounter extends OutputStream {
+		long count = 0;
+
+		public void write(int b) {
+			count = count + 1;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count = count + len;
+		}
+	}
+
+	// an input stream over the heap bytes from position up to end,
+	// which may cross from one region into the next
+	static class HeapInputStream extends InputStream {
+		ByteBuffer[] regions;
+		int shift;
+		long position;
+		long end;
+
+		HeapInputStream(ByteBuffer[] regions, int shift, long position, long end){
+			this.regions = regions;
+			this.shift = shift;
+			this.position = position;
+			this.end = end;
+		}
+
+		// the offset of position within its region
+		int inRegion(){
+			return (int) (position & ((1L << shift) - 1));
+		}
+
+		public int read() {
+			if (position >= end)
+				return -1;
+			int b = regions[(int) (position >>> shift)].get(inRegion()) & 0xff;
+			position = position + 1;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (position >= end)
+				return -1;
+			ByteBuffer region = regions[(int) (position >>> shift)];
+			len = (int) Math.min(len, end - position);
+			len = Math.min(len, region.limit() - inRegion());
+			region.get(inRegion(), b, off, len);
+			position = position + len;
+			return len;
+		}
+	}
+}
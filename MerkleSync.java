@@ -0,0 +1,131 @@
+// Finds the key ranges in which two FTrees differ when the trees are
+// in different processes, by exchanging range hashes over a pair of
+// streams (a pipe, a socket, or a pair of files being tailed).
+//
+// One side calls differingRanges, the other calls respond.  Starting
+// from the whole key space, the initiator asks for the responder's
+// content hash and count of each range; equal ranges are dropped and
+// differing ranges are split at their median key until each holds at
+// most one entry on either side.  For d differences this takes
+// O(d lg n) round trips of O(lg n) work each, and trees with different
+// shapes compare correctly because range hashes depend only on the
+// entries.
+//
+// Entries are hashed from their encoded bytes by a CodecHasher, so
+// keys or values that merely share a hashCode still differ.
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MerkleSync {
+
+	static final byte END = 0;
+	static final byte RANGE = 1;
+
+	// the keys in [lo, hi); a null bound means unbounded
+	public static class Range<K> {
+		K lo;
+		K hi;
+
+		Range(K lo, K hi){
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		public K lo(){
+			return lo;
+		}
+
+		public K hi(){
+			return hi;
+		}
+
+		public String toString(){
+			return "[" + lo + ", " + hi + ")";
+		}
+	}
+
+	// returns the ranges in which tree and the responder's tree differ,
+	// in key order
+	public static <K, V> List<Range<K>> differingRanges(FMap.FTree<K, V> tree,
+			DataInputStream in, DataOutputStream out, Codec<K> keys,
+			Codec<V> values) throws IOException {
+		List<Range<K>> result = new ArrayList<Range<K>>();
+		check(tree, null, null, in, out, keys, 
+				new CodecHasher<K, V>(keys, values), result);
+		out.writeByte(END);
+		out.flush();
+		return result;
+	}
+
+	static <K, V> void check(FMap.FTree<K, V> tree, K lo, K hi,
+			DataInputStream in, DataOutputStream out, Codec<K> keys,
+			EntryHasher<K, V> hasher, List<Range<K>> result) 
+					throws IOException {
+		out.writeByte(RANGE);
+		writeBound(lo, out, keys);
+		writeBound(hi, out, keys);
+		out.flush();
+		long theirHash = in.readLong();
+		int theirCount = in.readInt();
+		K theirMedian = readBound(in, keys);
+
+		int count = tree.rangeCount(lo, hi);
+		if (theirHash == tree.rangeHash(lo, hi, hasher) && theirCount == count)
+			return;
+		if (count <= 1 && theirCount <= 1){
+			result.add(new Range<K>(lo, hi));
+			return;
+		}
+		K mid = theirMedian;
+		if (count >= theirCount)
+			mid = median(tree, lo, count);
+		check(tree, lo, mid, in, out, keys, hasher, result);
+		check(tree, mid, hi, in, out, keys, hasher, result);
+	}
+
+	// answers the initiator's range requests until it is done
+	public static <K, V> void respond(FMap.FTree<K, V> tree,
+			DataInputStream in, DataOutputStream out, Codec<K> keys,
+			Codec<V> values) throws IOException {
+		EntryHasher<K, V> hasher = new CodecHasher<K, V>(keys, values);
+		while (in.readByte() == RANGE){
+			K lo = readBound(in, keys);
+			K hi = readBound(in, keys);
+			int count = tree.rangeCount(lo, hi);
+			out.writeLong(tree.rangeHash(lo, hi, hasher));
+			out.writeInt(count);
+			K mid = null;
+			if (count >= 2)
+				mid = median(tree, lo, count);
+			writeBound(mid, out, keys);
+			out.flush();
+		}
+	}
+
+	// the middle key of the count keys at or above lo; since count is
+	// at least 2 it is greater than lo, so splitting there makes
+	// progress
+	static <K, V> K median(FMap.FTree<K, V> tree, K lo, int count){
+		int first = 0;
+		if (lo != null)
+			first = tree.rank(lo);
+		return tree.select(first + count / 2);
+	}
+
+	static <K> void writeBound(K bound, DataOutputStream out, Codec<K> keys)
+			throws IOException {
+		out.writeBoolean(bound != null);
+		if (bound != null)
+			keys.write(bound, out);
+	}
+
+	static <K> K readBound(DataInputStream in, Codec<K> keys) throws IOException {
+		if (in.readBoolean())
+			return keys.read(in);
+		return null;
+	}
+}
@@ -0,0 +1,514 @@
+// A persistent red-black tree whose Nodes live outside the Java heap,
+// for keys and values of a fixed width.
+//
+// Nodes are allocated in an Arena of direct ByteBuffers and refer to
+// their children by index (0 is the empty tree), so a tree of any size
+// is a few heap objects and the garbage collector never walks it.  Like
+// FTree, add and remove copy the path to the changed Node and share
+// everything else, so older maps stay valid.
+//
+// Nodes are never freed one at a time.  Maps made from the same empty
+// map share one Arena, which grows until it is closed; compact copies
+// the Nodes reachable from the maps still in use into a new Arena, after
+// which the old one can be closed.  Closing an Arena drops its buffers
+// (the memory is returned when they are collected) and any later use of
+// a map in it throws IllegalStateException.
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public class OffHeapFMap<K, V> extends FMap<K, V> {
+
+	Arena<K, V> arena;
+	int root;
+	int size;
+	Comparator<? super K> c;
+
+	OffHeapFMap(Arena<K, V> arena, Comparator<? super K> c, int root, int size){
+		this.arena = arena;
+		this.c = c;
+		this.root = root;
+		this.size = size;
+	}
+
+	// returns an empty map in a new Arena
+	public static <K, V> OffHeapFMap<K, V> emptyMap(Comparator<? super K> c,
+			FixedWidthCodec<K> keys, FixedWidthCodec<V> values){
+		return new OffHeapFMap<K, V>(new Arena<K, V>(keys, values), c, 0, 0);
+	}
+
+	// returns an empty map whose Nodes will go in the given Arena
+	public static <K, V> OffHeapFMap<K, V> emptyMap(Comparator<? super K> c,
+			Arena<K, V> arena){
+		return new OffHeapFMap<K, V>(arena, c, 0, 0);
+	}
+
+	// copies tree, keeping its shape, into a new Arena in O(n) time
+	public static <K, V> OffHeapFMap<K, V> copyOf(FMap.FTree<K, V> tree,
+			FixedWidthCodec<K> keys, FixedWidthCodec<V> values){
+		Arena<K, V> arena = new Arena<K, V>(keys, values);
+		return new OffHeapFMap<K, V>(arena, tree.getComparator(), 
+				copy(tree, arena), tree.size());
+	}
+
+	static <K, V> int copy(FMap.FTree<K, V> t, Arena<K, V> to){
+		if (t.isEmpty())
+			return 0;
+		FMap.FTree.Node<K, V> n = (FMap.FTree.Node<K, V>) t;
+		int l = copy(n.l0, to);
+		int r = copy(n.r0, to);
+		return to.node(n.k0, n.v0, l, r, n.red);
+	}
+
+	public Arena<K, V> arena(){
+		return arena;
+	}
+
+	// copies the Nodes reachable from maps, which must all be in the
+	// same Arena, into a new Arena and returns the copies in the same
+	// order; Nodes shared between the maps stay shared
+	// the old Arena is left open for the caller to close
+	public static <K, V> List<OffHeapFMap<K, V>> compact(
+			List<OffHeapFMap<K, V>> maps){
+		List<OffHeapFMap<K, V>> result = new ArrayList<OffHeapFMap<K, V>>();
+		if (maps.isEmpty())
+			return result;
+		Arena<K, V> from = maps.get(0).arena;
+		from.checkOpen();
+		Arena<K, V> to = new Arena<K, V>(from.keys, from.values);
+		int[] moved = new int[from.next];
+		for (OffHeapFMap<K, V> m : maps){
+			if (m.arena != from)
+				throw new IllegalArgumentException("maps are in different arenas");
+			result.add(new OffHeapFMap<K, V>(
+					to, m.c, copy(from, m.root, to, moved), m.size));
+		}
+		return result;
+	}
+
+	// copies the subtree at t into the Arena to, children first;
+	// moved[t] is the copy of t, or 0 if it has not been copied
+	static <K, V> int copy(Arena<K, V> from, int t, Arena<K, V> to, int[] moved){
+		if (t == 0)
+			return 0;
+		if (moved[t] == 0){
+			int l = copy(from, from.left(t), to, moved);
+			int r = copy(from, from.right(t), to, moved);
+			moved[t] = to.node(from, t, l, r, from.isRed(t));
+		}
+		return moved[t];
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// the Node holding key, or 0
+	int find(K key){
+		arena.checkOpen();
+		int t = root;
+		while (t != 0){
+			int cmp = c.compare(key, arena.key(t));
+			if (cmp < 0)
+				t = arena.left(t);
+			else if (cmp > 0)
+				t = arena.right(t);
+			else
+				return t;
+		}
+		return 0;
+	}
+
+	public boolean containsKey(K key) {
+		return find(key) != 0;
+	}
+
+	public V get(K key) {
+		int t = find(key);
+		if (t == 0)
+			throw new IllegalArgumentException();
+		return arena.value(t);
+	}
+
+	public String toString() {
+		return "{...(" + this.size() + " entries)...}";
+	}
+
+	@Override
+	public OffHeapFMap<K, V> add(K key, V value){
+		int newSize = size;
+		if (!(this.containsKey(key)))
+			newSize = size + 1;
+		int t = insert(root, key, value);
+		// the root is always a new Node, so it can be blackened in place
+		arena.setRed(t, false);
+		return new OffHeapFMap<K, V>(arena, c, t, newSize);
+	}
+
+	// Okasaki's insertion, copying the path to the new entry
+	int insert(int t, K key, V value){
+		if (t == 0)
+			return arena.node(key, value, 0, 0, true);
+		int cmp = c.compare(key, arena.key(t));
+		if (cmp < 0)
+			return balance(t, insert(arena.left(t), key, value), arena.right(t));
+		if (cmp > 0)
+			return balance(t, arena.left(t), insert(arena.right(t), key, value));
+		return arena.node(key, value, arena.left(t), arena.right(t), 
+				arena.isRed(t));
+	}
+
+	// returns a copy of the entry at t with children l and r, rotating
+	// away two reds in a row below a black t
+	int balance(int t, int l, int r){
+		Arena<K, V> a = arena;
+		if (!a.isRed(t)){
+			if (a.isRed(l) && a.isRed(a.left(l))){
+				int ll = a.left(l);
+				return a.node(a, l, a.node(a, ll, a.left(ll), a.right(ll), false),
+						a.node(a, t, a.right(l), r, false), true);
+			}
+			if (a.isRed(l) && a.isRed(a.right(l))){
+				int lr = a.right(l);
+				return a.node(a, lr, a.node(a, l, a.left(l), a.left(lr), false),
+						a.node(a, t, a.right(lr), r, false), true);
+			}
+			if (a.isRed(r) && a.isRed(a.left(r))){
+				int rl = a.left(r);
+				return a.node(a, rl, a.node(a, t, l, a.left(rl), false),
+						a.node(a, r, a.right(rl), a.right(r), false), true);
+			}
+			if (a.isRed(r) && a.isRed(a.right(r))){
+				int rr = a.right(r);
+				return a.node(a, r, a.node(a, t, l, a.left(r), false),
+						a.node(a, rr, a.left(rr), a.right(rr), false), true);
+			}
+		}
+		return a.node(a, t, l, r, a.isRed(t));
+	}
+
+	// removes the key by joining the pieces of every Node on the path
+	// to it, as FTree.remove does, in O((lg n)^2) time
+	@Override
+	public OffHeapFMap<K, V> remove(K key){
+		if (!(this.containsKey(key)))
+			return this;
+		return new OffHeapFMap<K, V>(arena, c, remove(root, key), size - 1);
+	}
+
+	int remove(int t, K key){
+		int cmp = c.compare(key, arena.key(t));
+		if (cmp < 0)
+			return join(remove(arena.left(t), key), t, arena.right(t));
+		if (cmp > 0)
+			return join(arena.left(t), t, remove(arena.right(t), key));
+		return join2(arena.left(t), arena.right(t));
+	}
+
+	// the number of black Nodes on the leftmost path of t
+	int blackHeight(int t){
+		int h = 0;
+		while (t != 0){
+			if (!arena.isRed(t))
+				h = h + 1;
+			t = arena.left(t);
+		}
+		return h;
+	}
+
+	int makeBlack(int t){
+		return arena.node(arena, t, arena.left(t), arena.right(t), false);
+	}
+
+	// returns a red-black tree holding l, the entry at e and r, where
+	// the keys of l are less than e's and the keys of r are greater
+	int join(int l, int e, int r){
+		if (arena.isRed(l))
+			l = makeBlack(l);
+		if (arena.isRed(r))
+			r = makeBlack(r);
+		int lh = blackHeight(l);
+		int rh = blackHeight(r);
+
+		int t;
+		if (lh > rh){
+			t = joinRight(l, lh, e, r, rh);
+			if (arena.isRed(t) && arena.isRed(arena.right(t)))
+				t = makeBlack(t);
+		}
+		else if (lh < rh){
+			t = joinLeft(l, lh, e, r, rh);
+			if (arena.isRed(t) && arena.isRed(arena.left(t)))
+				t = makeBlack(t);
+		}
+		else
+			t = arena.node(arena, e, l, r, true);
+		return t;
+	}
+
+	// walks down the right spine of l to a black subtree with the black
+	// height of r and hangs e and r there
+	int joinRight(int l, int lh, int e, int r, int rh){
+		Arena<K, V> a = arena;
+		if (l == 0 || (!a.isRed(l) && lh <= rh))
+			return a.node(a, e, l, r, true);
+		int childh = lh;
+		if (!a.isRed(l))
+			childh = lh - 1;
+		int right = joinRight(a.right(l), childh, e, r, rh);
+
+		if (!a.isRed(l) && a.isRed(right) && a.isRed(a.right(right))){
+			int newleft = a.node(a, l, a.left(l), a.left(right), false);
+			return a.node(a, right, newleft, makeBlack(a.right(right)), true);
+		}
+		return a.node(a, l, a.left(l), right, a.isRed(l));
+	}
+
+	// the mirror image of joinRight
+	int joinLeft(int l, int lh, int e, int r, int rh){
+		Arena<K, V> a = arena;
+		if (r == 0 || (!a.isRed(r) && rh <= lh))
+			return a.node(a, e, l, r, true);
+		int childh = rh;
+		if (!a.isRed(r))
+			childh = rh - 1;
+		int left = joinLeft(l, lh, e, a.left(r), childh);
+
+		if (!a.isRed(r) && a.isRed(left) && a.isRed(a.left(left))){
+			int newright = a.node(a, r, a.right(left), a.right(r), false);
+			return a.node(a, left, makeBlack(a.left(left)), newright, true);
+		}
+		return a.node(a, r, left, a.right(r), a.isRed(r));
+	}
+
+	// joins two trees by moving the largest entry of l between them
+	int join2(int l, int r){
+		if (l == 0)
+			return r;
+		if (r == 0)
+			return l;
+		int last = l;
+		while (arena.right(last) != 0)
+			last = arena.right(last);
+		return join(withoutLast(l), last, r);
+	}
+
+	int withoutLast(int t){
+		if (arena.right(t) == 0)
+			return arena.left(t);
+		return join(arena.left(t), t, withoutLast(arena.right(t)));
+	}
+
+	// returns a map of the same shape in the same Arena, holding the
+	// visited values
+	@Override
+	public OffHeapFMap<K, V> accept(Visitor<K, V> avisitor) {
+		arena.checkOpen();
+		return new OffHeapFMap<K, V>(arena, c, accept(root, avisitor), size);
+	}
+
+	int accept(int t, Visitor<K, V> avisitor){
+		if (t == 0)
+			return 0;
+		int l = accept(arena.left(t), avisitor);
+		K k = arena.key(t);
+		V v = avisitor.visit(k, arena.value(t));
+		int r = accept(arena.right(t), avisitor);
+		return arena.node(k, v, l, r, arena.isRed(t));
+	}
+
+	// the keys in ascending order
+	@Override
+	public Iterator<K> iterator() {
+		arena.checkOpen();
+		return new Iterator<K>(){
+			// the Nodes whose keys are still to come, deepest last;
+			// a red-black tree of 2^31 Nodes is at most 62 deep
+			int[] stack = new int[64];
+			int depth = pushLeft(root, 0);
+
+			int pushLeft(int t, int d){
+				while (t != 0){
+					stack[d] = t;
+					d = d + 1;
+					t = arena.left(t);
+				}
+				return d;
+			}
+			public boolean hasNext() {
+				return depth > 0;
+			}
+			public K next() {
+				if (depth == 0)
+					throw new NoSuchElementException();
+				arena.checkOpen();
+				depth = depth - 1;
+				int t = stack[depth];
+				depth = pushLeft(arena.right(t), depth);
+				return arena.key(t);
+			}
+			public void remove() {
+				String msg = "Remove method is unimplemented";
+				throw new UnsupportedOperationException(msg);
+			}
+		};
+	}
+
+	ArrayList<K> addKeysToList(ArrayList<K> aList) {
+		for (K k : this)
+			aList.add(k);
+		return aList;
+	}
+
+	@Override
+	boolean isSorted() {
+		return true;
+	}
+
+	@Override
+	Comparator<? super K> getComparator() {
+		return c;
+	}
+
+	// Node storage for OffHeapFMaps
+	// a Node is its left and right indexes, a color byte, the key and
+	// the value; Nodes are allocated in chunks of 2^16 and never move
+	// allocation is synchronized, but a map's Nodes are only visible to
+	// other threads once the map itself is safely published
+	public static class Arena<K, V> {
+
+		static final int CHUNK_SHIFT = 16;
+		static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+		static final int LEFT = 0;
+		static final int RIGHT = 4;
+		static final int RED = 8;
+		static final int KEY = 9;
+
+		FixedWidthCodec<K> keys;
+		FixedWidthCodec<V> values;
+		int valueOffset;
+		int nodeBytes;
+		volatile ByteBuffer[] chunks = new ByteBuffer[1];
+		int chunkCount = 0;
+		int next = 1; // index 0 is the empty tree
+
+		public Arena(FixedWidthCodec<K> keys, FixedWidthCodec<V> values){
+			this.keys = keys;
+			this.values = values;
+			this.valueOffset = KEY + keys.width();
+			this.nodeBytes = valueOffset + values.width();
+		}
+
+		// the number of Nodes allocated so far
+		public synchronized int nodes(){
+			return next - 1;
+		}
+
+		// the bytes of direct memory held by this Arena
+		public synchronized long reservedBytes(){
+			return ((long) chunkCount << CHUNK_SHIFT) * nodeBytes;
+		}
+
+		public boolean isOpen(){
+			return chunks != null;
+		}
+
+		// drops this Arena's buffers; every map in it becomes unusable
+		public synchronized void close(){
+			chunks = null;
+		}
+
+		void checkOpen(){
+			if (chunks == null)
+				throw new IllegalStateException("arena is closed");
+		}
+
+		synchronized int allocate(){
+			checkOpen();
+			if (next == Integer.MAX_VALUE)
+				throw new IllegalStateException("arena is full");
+			if ((next >>> CHUNK_SHIFT) == chunkCount){
+				ByteBuffer[] grown = chunks;
+				if (chunkCount == grown.length){
+					grown = new ByteBuffer[2 * chunkCount];
+					System.arraycopy(chunks, 0, grown, 0, chunkCount);
+				}
+				grown[chunkCount] = ByteBuffer.allocateDirect(
+						nodeBytes << CHUNK_SHIFT);
+				chunkCount = chunkCount + 1;
+				chunks = grown;
+			}
+			next = next + 1;
+			return next - 1;
+		}
+
+		ByteBuffer chunk(int t){
+			return chunks[t >>> CHUNK_SHIFT];
+		}
+
+		int offset(int t){
+			return (t & CHUNK_MASK) * nodeBytes;
+		}
+
+		int left(int t){
+			return chunk(t).getInt(offset(t) + LEFT);
+		}
+
+		int right(int t){
+			return chunk(t).getInt(offset(t) + RIGHT);
+		}
+
+		// the empty tree is black
+		boolean isRed(int t){
+			return t != 0 && chunk(t).get(offset(t) + RED) != 0;
+		}
+
+		void setRed(int t, boolean red){
+			chunk(t).put(offset(t) + RED, (byte) (red ? 1 : 0));
+		}
+
+		K key(int t){
+			return keys.get(chunk(t), offset(t) + KEY);
+		}
+
+		V value(int t){
+			return values.get(chunk(t), offset(t) + valueOffset);
+		}
+
+		void link(int t, int l, int r, boolean red){
+			ByteBuffer b = chunk(t);
+			int o = offset(t);
+			b.putInt(o + LEFT, l);
+			b.putInt(o + RIGHT, r);
+			b.put(o + RED, (byte) (red ? 1 : 0));
+		}
+
+		// a new Node holding key and value
+		int node(K key, V value, int l, int r, boolean red){
+			int t = allocate();
+			ByteBuffer b = chunk(t);
+			keys.put(b, offset(t) + KEY, key);
+			values.put(b, offset(t) + valueOffset, value);
+			link(t, l, r, red);
+			return t;
+		}
+
+		// a new Node holding a copy of the entry of Node e in Arena from,
+		// without decoding it
+		int node(Arena<K, V> from, int e, int l, int r, boolean red){
+			int t = allocate();
+			chunk(t).put(offset(t) + KEY, from.chunk(e), from.offset(e) + KEY,
+					nodeBytes - KEY);
+			link(t, l, r, red);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+// A sorted FMap of at most THRESHOLD entries held in a single array,
+// made by FMap.emptySmallMap.
+//
+// The entries are stored as key, value, key, value, ... in comparator
+// order, so a map is two objects whatever its size, and get searches
+// one array.  Adding an entry beyond THRESHOLD returns an FTree holding
+// all of them, built balanced in one pass.
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class SmallFMap<K, V> extends FMap<K, V> {
+
+	static final int THRESHOLD = 8;
+
+	Object[] entries;
+	Comparator<? super K> c;
+
+	SmallFMap(Comparator<? super K> c, Object[] entries){
+		this.c = c;
+		this.entries = entries;
+	}
+
+	// the index of key's slot in entries, or -(insertion point) - 1
+	int indexOf(K key){
+		int lo = 0;
+		int hi = entries.length / 2;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int cmp = c.compare((K) entries[2 * mid], key);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid;
+			else
+				return 2 * mid;
+		}
+		return -2 * lo - 1;
+	}
+
+	public boolean isEmpty() {
+		return entries.length == 0;
+	}
+
+	public int size() {
+		return entries.length / 2;
+	}
+
+	public boolean containsKey(K key) {
+		return indexOf(key) >= 0;
+	}
+
+	public V get(K key) {
+		int i = indexOf(key);
+		if (i < 0)
+			throw new IllegalArgumentException();
+		return (V) entries[i + 1];
+	}
+
+	public String toString() {
+		return "{...(" + this.size() + " entries)...}";
+	}
+
+	@Override
+	public FMap<K, V> add(K key, V value){
+		int i = indexOf(key);
+		if (i >= 0){
+			if (entries[i + 1] == value)
+				return this;
+			Object[] e = entries.clone();
+			e[i + 1] = value;
+			return new SmallFMap<K, V>(c, e);
+		}
+		i = -i - 1;
+		Object[] e = new Object[entries.length + 2];
+		System.arraycopy(entries, 0, e, 0, i);
+		e[i] = key;
+		e[i + 1] = value;
+		System.arraycopy(entries, i, e, i + 2, entries.length - i);
+		if (e.length <= 2 * THRESHOLD)
+			return new SmallFMap<K, V>(c, e);
+
+		// too big: move to an FTree
+		int n = e.length / 2;
+		Object[] keys = new Object[n];
+		Object[] values = new Object[n];
+		for (int j = 0; j < n; j = j + 1){
+			keys[j] = e[2 * j];
+			values[j] = e[2 * j + 1];
+		}
+		return FMap.FTree.buildSorted(c, keys, values, 0, n);
+	}
+
+	@Override
+	public SmallFMap<K, V> remove(K key){
+		int i = indexOf(key);
+		if (i < 0)
+			return this;
+		Object[] e = new Object[entries.length - 2];
+		System.arraycopy(entries, 0, e, 0, i);
+		System.arraycopy(entries, i + 2, e, i, entries.length - i - 2);
+		return new SmallFMap<K, V>(c, e);
+	}
+
+	// returns this map if every value comes back unchanged
+	@Override
+	public SmallFMap<K, V> accept(Visitor<K, V> avisitor) {
+		Object[] e = null;
+		for (int i = 0; i < entries.length; i = i + 2){
+			V v = avisitor.visit((K) entries[i], (V) entries[i + 1]);
+			if (v != entries[i + 1] && e == null)
+				e = entries.clone();
+			if (e != null)
+				e[i + 1] = v;
+		}
+		if (e == null)
+			return this;
+		return new SmallFMap<K, V>(c, e);
+	}
+
+	// the keys in ascending order
+	@Override
+	public Iterator<K> iterator() {
+		return new Iterator<K>(){
+			int i = 0;
+			public boolean hasNext() {
+				return i < entries.length;
+			}
+			public K next() {
+				if (i >= entries.length)
+					throw new NoSuchElementException();
+				i = i + 2;
+				return (K) entries[i - 2];
+			}
+			public void remove() {
+				String msg = "Remove method is unimplemented";
+				throw new UnsupportedOperationException(msg);
+			}
+		};
+	}
+
+	ArrayList<K> addKeysToList(ArrayList<K> aList) {
+		for (int i = 0; i < entries.length; i = i + 2)
+			aList.add((K) entries[i]);
+		return aList;
+	}
+
+	@Override
+	boolean isSorted() {
+		return true;
+	}
+
+	@Override
+	Comparator<? super K> getComparator() {
+		return c;
+	}
+}
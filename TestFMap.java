@@ -1,10 +1,31 @@
 // Basic test program for assignment 10,
 // based on the test program for assignment 8.
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 
 
 public class TestFMap {
@@ -46,6 +67,35 @@ public class TestFMap {
 
         test.equality();
 
+        System.out.println("Testing red-black tree extensions");
+
+        test.diagnostics();
+        test.lazyVisitors();
+        test.chainedVisitors();
+        test.sharingVisitors();
+        test.incrementalVisitors();
+        test.rangeVisitors();
+        test.filters();
+        test.batchVisitors();
+        test.asyncVisitors();
+        test.removes();
+        test.sharedRefs();
+        test.combining();
+        test.versions();
+        test.transactions();
+        test.diffs();
+        test.merkle();
+        test.snapshots();
+        test.checkpoints();
+        test.mappedMaps();
+        test.frozenMaps();
+        test.frozenLongMaps();
+        test.offHeapMaps();
+        test.bloomFilters();
+        test.hashedMaps();
+        test.bTreeMaps();
+        test.smallMaps();
+
         // test.bad();
 
         try {
@@ -628,6 +678,1982 @@ public class TestFMap {
         }
     }
 
+    // Returns a red-black tree with keys 0 through n-1,
+    // inserted in a scrambled order.
+
+    // Returns the heap in use, after collecting garbage.
+
+    private long usedMemory () {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i = i + 1)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private FMap<Integer,String> bigTree (int n) {
+        FMap<Integer,String> f = FMap.emptyMap(usualIntegerComparator);
+        for (int i = 0; i < n; i = i + 1) {
+            int k = (i * 7919) % n;
+            f = f.add(k, "v" + k);
+        }
+        return f;
+    }
+
+    // Tests the shape diagnostics of red-black trees.
+
+    private void diagnostics () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            FMap.FTree.Diagnostics d = t.diagnostics();
+
+            assertTrue ("diagnostics nodes",
+                        d.redNodes() + d.blackNodes() == 1000);
+            assertTrue ("diagnostics height",
+                        d.height() >= 10 && d.height() <= 20);
+            assertTrue ("diagnostics black-height", d.blackHeight() > 0);
+            int total = 0;
+            for (int count : d.depthHistogram())
+                total = total + count;
+            assertTrue ("diagnostics histogram", total == 1000);
+            assertTrue ("diagnostics histogram root",
+                        d.depthHistogram()[0] == 1);
+            assertTrue ("diagnostics bytes", d.estimatedBytes() > 0);
+
+            // the estimate should match what the Nodes really take;
+            // buildSorted shares one empty leaf, which retainedBytes
+            // counts once
+            int n = 1000000;
+            Object[] keys = new Object[n];
+            Object[] values = new Object[n];
+            for (int i = 0; i < n; i = i + 1) {
+                keys[i] = Integer.valueOf(i);
+                values[i] = "v";
+            }
+            long before = usedMemory();
+            FMap.FTree<Integer,String> built = FMap.FTree.buildSorted(
+                usualIntegerComparator, keys, values, 0, n);
+            long measured = usedMemory() - before;
+            List<FMap.FTree<Integer,String>> trees
+                = new ArrayList<FMap.FTree<Integer,String>>();
+            trees.add(built);
+            long estimated = FMap.FTree.retainedBytes(trees);
+            assertTrue ("diagnostics bytes measured",
+                        Math.abs(measured - estimated) < estimated / 10);
+            assertTrue ("diagnostics bytes size", built.size() == n);
+
+            FMap.FTree<Integer,String> empty
+                = FMap.emptyMap(usualIntegerComparator);
+            assertTrue ("diagnostics empty",
+                        empty.diagnostics().height() == 0);
+
+            FMap.FTree<Integer,String> t2 = t.add(5000, "new");
+            assertTrue ("sharedFraction self", t.sharedFraction(t) == 1.0);
+            assertTrue ("sharedFraction version",
+                        t2.sharedFraction(t) > 0.9
+                        && t2.sharedFraction(t) < 1.0);
+            assertTrue ("sharedFraction unrelated",
+                        t.sharedFraction((FMap.FTree<Integer,String>)
+                                         bigTree(1000)) == 0.0);
+
+            assertTrue ("toString big",
+                        t.toString().equals("{...(1000 entries)...}"));
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during diagnostics tests:");
+            System.out.println(e);
+            assertTrue ("diagnostics", false);
+        }
+    }
+
+    // A visitor that appends a suffix and counts its calls.
+
+    private static class CountingVisitor
+        implements Visitor<Integer,String> {
+
+        int calls = 0;
+        String suffix;
+
+        CountingVisitor (String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String visit (Integer k, String v) {
+            calls = calls + 1;
+            return v + suffix;
+        }
+
+    }
+
+    // Tests the lazy mapped view.
+
+    private void lazyVisitors () {
+        try {
+            FMap<Integer,String> t = bigTree(1000);
+            CountingVisitor v = new CountingVisitor("!");
+            FMap.Lazy<Integer,String> lazy = t.mapValuesLazy(v);
+
+            assertTrue ("lazy no visits", v.calls == 0);
+            assertTrue ("lazy size", lazy.size() == 1000);
+            assertTrue ("lazy get", lazy.get(17).equals("v17!"));
+            assertTrue ("lazy get again", lazy.get(17).equals("v17!"));
+            assertTrue ("lazy memoized", v.calls == 1);
+            assertTrue ("lazy containsKey", lazy.containsKey(999));
+            assertFalse ("lazy containsKey missing", lazy.containsKey(1000));
+
+            FMap<Integer,String> m = lazy.materialize();
+            assertTrue ("lazy materialize calls", v.calls == 1000);
+            assertTrue ("lazy materialize tree", m instanceof FMap.FTree);
+            assertTrue ("lazy materialize equals",
+                        m.equals(t.accept(new CountingVisitor("!"))));
+            assertTrue ("lazy equals", lazy.equals(m));
+
+            CountingVisitor v2 = new CountingVisitor("?");
+            assertTrue ("lazy accept",
+                        lazy.accept(v2).get(17).equals("v17!?"));
+            assertTrue ("lazy accept calls", v2.calls == 1000);
+
+            CountingVisitor v7 = new CountingVisitor("?");
+            FMap<Integer,String> lazy7 = f7.mapValuesLazy(v7);
+            assertTrue ("lazy add chain", lazy7.get(one).equals("Alice?"));
+            assertTrue ("lazy add chain size", lazy7.size() == 2);
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during lazy visitor tests:");
+            System.out.println(e);
+            assertTrue ("lazyVisitors", false);
+        }
+    }
+
+    // Tests applying several visitors in one pass.
+
+    private void chainedVisitors () {
+        try {
+            CountingVisitor a = new CountingVisitor("a");
+            CountingVisitor b = new CountingVisitor("b");
+            ArrayList<Visitor<Integer,String>> vs
+                = new ArrayList<Visitor<Integer,String>>();
+            vs.add(a);
+            vs.add(b);
+
+            FMap<Integer,String> t = bigTree(100);
+            FMap<Integer,String> m = t.acceptAll(vs);
+            assertTrue ("acceptAll tree", m.get(42).equals("v42ab"));
+            assertTrue ("acceptAll calls", a.calls == 100 && b.calls == 100);
+            assertTrue ("acceptAll equals",
+                        m.equals(t.accept(a).accept(b)));
+
+            m = f7.acceptAll(vs);
+            assertTrue ("acceptAll add chain", m.get(two).equals("Bobab"));
+            assertTrue ("acceptAll add chain size", m.size() == 2);
+
+            vs.clear();
+            assertTrue ("acceptAll none", t.acceptAll(vs).equals(t));
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during chained visitor tests:");
+            System.out.println(e);
+            assertTrue ("chainedVisitors", false);
+        }
+    }
+
+    // Tests that accept shares subtrees whose values don't change.
+
+    private void sharingVisitors () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            Visitor<Integer,String> same
+                = new Visitor<Integer,String>() {
+                        public String visit (Integer k, String v) {
+                            return v;
+                        }
+                    };
+            Visitor<Integer,String> touchOne
+                = new Visitor<Integer,String>() {
+                        public String visit (Integer k, String v) {
+                            if (k == 500)
+                                return "changed";
+                            return v;
+                        }
+                    };
+
+            assertTrue ("accept shares all", t.accept(same) == t);
+
+            FMap.FTree<Integer,String> t2
+                = (FMap.FTree<Integer,String>) t.accept(touchOne);
+            assertTrue ("accept changed", t2.get(500).equals("changed"));
+            assertTrue ("accept unchanged", t2.get(499).equals("v499"));
+            assertTrue ("accept shares most", t2.sharedFraction(t) > 0.95);
+            assertTrue ("accept shape",
+                        t2.diagnostics().height() == t.diagnostics().height());
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during sharing tests:");
+            System.out.println(e);
+            assertTrue ("sharingVisitors", false);
+        }
+    }
+
+    // Tests visiting successive versions of a tree incrementally.
+
+    private void incrementalVisitors () {
+        try {
+            CountingVisitor v = new CountingVisitor("!");
+            FMap.FTree.IncrementalAccept<Integer,String> inc
+                = new FMap.FTree.IncrementalAccept<Integer,String>(v);
+
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            FMap<Integer,String> m = inc.accept(t);
+            assertTrue ("incremental first", v.calls == 1000);
+            assertTrue ("incremental first equals",
+                        m.equals(t.accept(new CountingVisitor("!"))));
+
+            v.calls = 0;
+            assertTrue ("incremental same", inc.accept(t) == m);
+            assertTrue ("incremental same calls", v.calls == 0);
+
+            FMap.FTree<Integer,String> t2
+                = t.add(2000, "new").add(17, "changed");
+            FMap<Integer,String> m2 = inc.accept(t2);
+            assertTrue ("incremental calls", v.calls > 0 && v.calls < 100);
+            assertTrue ("incremental equals",
+                        m2.equals(t2.accept(new CountingVisitor("!"))));
+            assertTrue ("incremental changed", m2.get(17).equals("changed!"));
+
+            for (int i = 0; i < 200; i = i + 1) {
+                t2 = t2.add(i, "again");
+                m2 = inc.accept(t2);
+            }
+            assertTrue ("incremental many",
+                        m2.equals(t2.accept(new CountingVisitor("!"))));
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during incremental tests:");
+            System.out.println(e);
+            assertTrue ("incrementalVisitors", false);
+        }
+    }
+
+    // Tests range-restricted accept and findFirst.
+
+    private void rangeVisitors () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            CountingVisitor v = new CountingVisitor("!");
+
+            FMap.FTree<Integer,String> r = t.acceptRange(100, 110, v);
+            assertTrue ("acceptRange calls", v.calls == 10);
+            assertTrue ("acceptRange lo", r.get(100).equals("v100!"));
+            assertTrue ("acceptRange hi", r.get(110).equals("v110"));
+            assertTrue ("acceptRange below", r.get(99).equals("v99"));
+            assertTrue ("acceptRange size", r.size() == 1000);
+            assertTrue ("acceptRange shares", r.sharedFraction(t) > 0.9);
+            assertTrue ("acceptRange empty", t.acceptRange(5, 5, v) == t);
+
+            final int[] tested = { 0 };
+            Integer k = t.findFirst(new BiPredicate<Integer,String>() {
+                    public boolean test (Integer k, String v) {
+                        tested[0] = tested[0] + 1;
+                        return k >= 10;
+                    }
+                });
+            assertTrue ("findFirst", k == 10);
+            assertTrue ("findFirst stops", tested[0] == 11);
+
+            k = t.findFirst(new BiPredicate<Integer,String>() {
+                    public boolean test (Integer k, String v) {
+                        return v.equals("nobody");
+                    }
+                });
+            assertTrue ("findFirst none", k == null);
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during range tests:");
+            System.out.println(e);
+            assertTrue ("rangeVisitors", false);
+        }
+    }
+
+    // Returns true if the tree satisfies the red-black invariants
+    // and its height is within the red-black bound.
+
+    private boolean isRedBlack (FMap.FTree<Integer,String> t) {
+        FMap.FTree.Diagnostics d = t.diagnostics();
+        double bound = 2 * Math.log(t.size() + 1) / Math.log(2.0);
+        return d.blackHeight() >= 0
+            && d.redViolations() == 0
+            && d.height() <= bound + 1;
+    }
+
+    // Tests filter on red-black trees.
+
+    private void filters () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            assertTrue ("filter input", isRedBlack(t));
+            assertTrue ("filter replace",
+                        isRedBlack(t.add(500, "again").add(3, "again")));
+
+            FMap.FTree<Integer,String> evens
+                = t.filter(new BiPredicate<Integer,String>() {
+                        public boolean test (Integer k, String v) {
+                            return k % 2 == 0;
+                        }
+                    });
+            assertTrue ("filter size", evens.size() == 500);
+            assertTrue ("filter even", evens.get(998).equals("v998"));
+            assertFalse ("filter odd", evens.containsKey(999));
+            assertTrue ("filter valid", isRedBlack(evens));
+
+            FMap.FTree<Integer,String> all
+                = t.filter(new BiPredicate<Integer,String>() {
+                        public boolean test (Integer k, String v) {
+                            return true;
+                        }
+                    });
+            assertTrue ("filter all", all == t);
+
+            FMap.FTree<Integer,String> none
+                = t.filter(new BiPredicate<Integer,String>() {
+                        public boolean test (Integer k, String v) {
+                            return false;
+                        }
+                    });
+            assertTrue ("filter none", none.isEmpty());
+
+            FMap.FTree<Integer,String> most
+                = t.filter(new BiPredicate<Integer,String>() {
+                        public boolean test (Integer k, String v) {
+                            return k < 400 || k >= 410;
+                        }
+                    });
+            assertTrue ("filter most size", most.size() == 990);
+            assertTrue ("filter most valid", isRedBlack(most));
+            assertTrue ("filter most shares", most.sharedFraction(t) > 0.5);
+
+            final Random r = new Random(1059786856);
+            for (int i = 0; i < 50; i = i + 1) {
+                final int percent = r.nextInt(100);
+                FMap.FTree<Integer,String> f
+                    = t.filter(new BiPredicate<Integer,String>() {
+                            public boolean test (Integer k, String v) {
+                                return r.nextInt(100) < percent;
+                            }
+                        });
+                assertTrue ("filter random valid", isRedBlack(f));
+                int count = 0;
+                for (Integer k : f) {
+                    if (! f.get(k).equals("v" + k))
+                        count = -1000000;
+                    count = count + 1;
+                }
+                assertTrue ("filter random size", count == f.size());
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during filter tests:");
+            System.out.println(e);
+            assertTrue ("filters", false);
+        }
+    }
+
+    // A batch visitor that appends a suffix and counts its calls.
+
+    private static class CountingBatchVisitor
+        implements BatchVisitor<Integer,String> {
+
+        int calls = 0;
+        int entries = 0;
+
+        public void visit (Integer[] keys, String[] values, int n) {
+            calls = calls + 1;
+            entries = entries + n;
+            for (int i = 0; i < n; i = i + 1)
+                if (keys[i] % 2 == 0)
+                    values[i] = values[i] + "!";
+        }
+
+    }
+
+    // Tests acceptBatched.
+
+    private void batchVisitors () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            CountingBatchVisitor bv = new CountingBatchVisitor();
+            FMap.FTree<Integer,String> m
+                = t.acceptBatched(bv, new Integer[64], new String[64]);
+
+            assertTrue ("acceptBatched calls", bv.calls == 16);
+            assertTrue ("acceptBatched entries", bv.entries == 1000);
+            assertTrue ("acceptBatched even", m.get(10).equals("v10!"));
+            assertTrue ("acceptBatched odd", m.get(11).equals("v11"));
+            assertTrue ("acceptBatched size", m.size() == 1000);
+            assertTrue ("acceptBatched shape",
+                        m.diagnostics().height() == t.diagnostics().height());
+
+            FMap.FTree<Integer,String> empty
+                = FMap.emptyMap(usualIntegerComparator);
+            bv = new CountingBatchVisitor();
+            assertTrue ("acceptBatched empty",
+                        empty.acceptBatched(bv, new Integer[8],
+                                            new String[8]).isEmpty());
+            assertTrue ("acceptBatched empty calls", bv.calls == 0);
+
+            try {
+                t.acceptBatched(bv, new Integer[0], new String[0]);
+                assertTrue ("acceptBatched (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("acceptBatched (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during batch visitor tests:");
+            System.out.println(e);
+            assertTrue ("batchVisitors", false);
+        }
+    }
+
+    // Tests acceptAsync with a blocking visitor on a thread pool.
+
+    private void asyncVisitors () {
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try {
+            final AtomicInteger inFlight = new AtomicInteger();
+            final AtomicInteger maxInFlight = new AtomicInteger();
+            Visitor<Integer,String> slow
+                = new Visitor<Integer,String>() {
+                        public String visit (Integer k, String v) {
+                            int now = inFlight.incrementAndGet();
+                            if (now > maxInFlight.get())
+                                maxInFlight.set(now);
+                            try {
+                                Thread.sleep(1);
+                            }
+                            catch (InterruptedException e) { }
+                            inFlight.decrementAndGet();
+                            return v + "!";
+                        }
+                    };
+
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(200);
+            FMap.FTree<Integer,String> m
+                = t.acceptAsync(slow, pool, 8).get();
+            assertTrue ("acceptAsync equals",
+                        m.equals(t.accept(new CountingVisitor("!"))));
+            assertTrue ("acceptAsync limit", maxInFlight.get() <= 8);
+            assertTrue ("acceptAsync shape",
+                        m.diagnostics().height() == t.diagnostics().height());
+
+            AsyncVisitor<Integer,String> failing
+                = new AsyncVisitor<Integer,String>() {
+                        public CompletableFuture<String> visit (Integer k,
+                                                                String v) {
+                            if (k == 50)
+                                throw new IllegalStateException();
+                            return CompletableFuture.completedFuture(v);
+                        }
+                    };
+            try {
+                t.acceptAsync(failing, 4).get();
+                assertTrue ("acceptAsync (exception)", false);
+            }
+            catch (ExecutionException e) {
+                assertTrue ("acceptAsync (exception)",
+                            e.getCause() instanceof IllegalStateException);
+            }
+
+            AsyncVisitor<Integer,String> nulls
+                = new AsyncVisitor<Integer,String>() {
+                        public CompletableFuture<String> visit (Integer k,
+                                                                String v) {
+                            if (k == 50)
+                                return null;
+                            return CompletableFuture.completedFuture(v);
+                        }
+                    };
+            try {
+                t.acceptAsync(nulls, 4).get(10, TimeUnit.SECONDS);
+                assertTrue ("acceptAsync (null future)", false);
+            }
+            catch (ExecutionException e) {
+                assertTrue ("acceptAsync (null future)",
+                            e.getCause() instanceof NullPointerException);
+            }
+
+            // visits that complete later must not hold up the caller
+            final List<CompletableFuture<String>> pending
+                = new ArrayList<CompletableFuture<String>>();
+            AsyncVisitor<Integer,String> later
+                = new AsyncVisitor<Integer,String>() {
+                        public CompletableFuture<String> visit (Integer k,
+                                                                String v) {
+                            CompletableFuture<String> f
+                                = new CompletableFuture<String>();
+                            synchronized (pending) {
+                                pending.add(f);
+                            }
+                            return f;
+                        }
+                    };
+            FMap.FTree<Integer,String> small
+                = (FMap.FTree<Integer,String>) bigTree(10);
+            CompletableFuture<FMap.FTree<Integer,String>> result
+                = small.acceptAsync(later, 3);
+            assertTrue ("acceptAsync returns at once",
+                        !result.isDone() && pending.size() == 3);
+            for (int i = 0; i < 10; i = i + 1) {
+                CompletableFuture<String> f;
+                synchronized (pending) {
+                    f = pending.get(i);
+                }
+                f.complete("v" + i + "!");
+            }
+            assertTrue ("acceptAsync later",
+                        result.get().equals(small.accept(new CountingVisitor("!"))));
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during async visitor tests:");
+            System.out.println(e);
+            assertTrue ("asyncVisitors", false);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    // Tests remove on both representations.
+
+    private void removes () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            FMap.FTree<Integer,String> r = t;
+            for (int i = 0; i < 1000; i = i + 3)
+                r = r.remove(i);
+            assertTrue ("remove size", r.size() == 666);
+            assertFalse ("remove gone", r.containsKey(999));
+            assertTrue ("remove kept", r.get(998).equals("v998"));
+            assertTrue ("remove valid", isRedBlack(r));
+            assertTrue ("remove missing", r.remove(999) == r);
+            assertTrue ("remove original", t.size() == 1000);
+            for (int i = 0; i < 1000; i = i + 1)
+                r = r.remove(i);
+            assertTrue ("remove all", r.isEmpty());
+
+            FMap<Integer,String> m = f7.remove(one);
+            assertTrue ("remove add chain", m.size() == 1);
+            assertFalse ("remove add chain gone", m.containsKey(one));
+            assertTrue ("remove add chain kept", m.get(two).equals(bob));
+            assertTrue ("remove add chain missing", f7.remove(six) == f7);
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during remove tests:");
+            System.out.println(e);
+            assertTrue ("removes", false);
+        }
+    }
+
+    // Tests FMapRef under concurrent writers.
+
+    private void sharedRefs () {
+        try {
+            final FMapRef<Integer,String> ref
+                = new FMapRef<Integer,String>(
+                      FMap.<Integer,String>emptyMap(usualIntegerComparator));
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t = t + 1) {
+                final int base = t * 1000;
+                threads[t] = new Thread() {
+                        public void run () {
+                            for (int i = 0; i < 500; i = i + 1)
+                                ref.put(base + i, "x");
+                            for (int i = 0; i < 500; i = i + 2)
+                                ref.remove(base + i);
+                        }
+                    };
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            assertTrue ("FMapRef size", ref.snapshot().size() == 8 * 250);
+            assertTrue ("FMapRef put", ref.containsKey(7499));
+            assertFalse ("FMapRef remove", ref.containsKey(7498));
+
+            BiFunction<Integer,String,String> append
+                = new BiFunction<Integer,String,String>() {
+                        public String apply (Integer k, String v) {
+                            if (v == null)
+                                return "new";
+                            return v + "+";
+                        }
+                    };
+            FMap<Integer,String> before = ref.snapshot();
+            assertTrue ("FMapRef compute", ref.compute(1, append).equals("x+"));
+            assertTrue ("FMapRef compute new",
+                        ref.compute(-1, append).equals("new"));
+            assertTrue ("FMapRef snapshot", before.get(1).equals("x"));
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during FMapRef tests:");
+            System.out.println(e);
+            assertTrue ("sharedRefs", false);
+        }
+    }
+
+    // Tests the bulk operations behind CombiningFTree, and
+    // CombiningFTree itself under concurrent writers.
+
+    private void combining () {
+        try {
+            Object[] keys = new Object[100];
+            Object[] values = new Object[100];
+            for (int i = 0; i < 100; i = i + 1) {
+                keys[i] = 2 * i;
+                values[i] = "b" + i;
+            }
+            for (int n = 0; n <= 100; n = n + 1) {
+                FMap.FTree<Integer,String> b
+                    = FMap.FTree.buildSorted(usualIntegerComparator,
+                                             keys, values, 0, n);
+                assertTrue ("buildSorted size", b.size() == n);
+                assertTrue ("buildSorted valid", isRedBlack(b));
+            }
+
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            FMap.FTree<Integer,String> added
+                = FMap.FTree.buildSorted(usualIntegerComparator,
+                                         keys, values, 0, 100);
+            FMap.FTree<Integer,String> u = FMap.FTree.union(t, added);
+            assertTrue ("union size", u.size() == 1000);
+            assertTrue ("union newer wins", u.get(198).equals("b99"));
+            assertTrue ("union older kept", u.get(199).equals("v199"));
+            assertTrue ("union valid", isRedBlack(u));
+            assertTrue ("union shares", u.sharedFraction(t) > 0.5);
+
+            final CombiningFTree<Integer,String> shared
+                = new CombiningFTree<Integer,String>(
+                      FMap.<Integer,String>emptyMap(usualIntegerComparator),
+                      8);
+            Thread[] threads = new Thread[16];
+            for (int i = 0; i < threads.length; i = i + 1) {
+                final int base = i * 1000;
+                threads[i] = new Thread() {
+                        public void run () {
+                            for (int j = 0; j < 300; j = j + 1)
+                                shared.put(base + j, "x");
+                            for (int j = 0; j < 300; j = j + 3)
+                                shared.remove(base + j);
+                        }
+                    };
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            assertTrue ("combining size", shared.snapshot().size() == 16 * 200);
+            assertTrue ("combining put", shared.containsKey(15299));
+            assertFalse ("combining remove", shared.containsKey(15297));
+            assertTrue ("combining valid", isRedBlack(shared.snapshot()));
+
+            // a batch that fails must release every writer in it
+            Comparator<Integer> picky = new Comparator<Integer>() {
+                    public int compare (Integer m, Integer n) {
+                        if (m == 13 || n == 13)
+                            throw new IllegalStateException("13");
+                        return m.compareTo(n);
+                    }
+                };
+            final CombiningFTree<Integer,String> failing
+                = new CombiningFTree<Integer,String>(
+                      FMap.<Integer,String>emptyMap(picky).add(5, "five"), 4);
+            final AtomicInteger failed = new AtomicInteger(0);
+            failing.combinerLock.lock();
+            Thread writer = new Thread() {
+                    public void run () {
+                        try {
+                            failing.put(13, "thirteen");
+                        }
+                        catch (IllegalStateException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+            writer.start();
+            boolean published = false;
+            while (!published) {
+                for (int i = 0; i < 4; i = i + 1)
+                    published = published || failing.slots.get(i) != null;
+                Thread.yield();
+            }
+            failing.combinerLock.unlock();
+            try {
+                failing.put(1, "one");
+            }
+            catch (IllegalStateException e) {
+                // fine if 13 was in the same batch
+            }
+            writer.join(10000);
+            assertFalse ("combining failure releases writers",
+                         writer.isAlive());
+            assertTrue ("combining failure rethrown", failed.get() == 1);
+            failing.put(2, "two");
+            assertTrue ("combining after failure",
+                        failing.containsKey(2) && failing.containsKey(5));
+
+            // of two puts to one key in a batch, the last one wins and
+            // the other is told it was superseded
+            final CombiningFTree<Integer,String> racing
+                = new CombiningFTree<Integer,String>(
+                      (FMap.FTree<Integer,String>) bigTree(10), 4);
+            final List<CombiningFTree.Outcome<Integer,String>> outcomes
+                = new ArrayList<CombiningFTree.Outcome<Integer,String>>();
+            racing.combinerLock.lock();
+            Thread[] racers = new Thread[2];
+            for (int i = 0; i < 2; i = i + 1) {
+                final String value = "racer" + i;
+                racers[i] = new Thread() {
+                        public void run () {
+                            CombiningFTree.Outcome<Integer,String> o
+                                = racing.putWithOutcome(7, value);
+                            synchronized (outcomes) {
+                                outcomes.add(o);
+                            }
+                        }
+                    };
+                racers[i].start();
+            }
+            int waiting = 0;
+            while (waiting < 2) {
+                waiting = 0;
+                for (int i = 0; i < 4; i = i + 1)
+                    if (racing.slots.get(i) != null)
+                        waiting = waiting + 1;
+                Thread.yield();
+            }
+            racing.combinerLock.unlock();
+            for (Thread racer : racers)
+                racer.join();
+            CombiningFTree.Outcome<Integer,String> first = outcomes.get(0);
+            CombiningFTree.Outcome<Integer,String> second = outcomes.get(1);
+            assertTrue ("combining one superseded",
+                        first.superseded() != second.superseded());
+            CombiningFTree.Outcome<Integer,String> winner
+                = first.superseded() ? second : first;
+            assertTrue ("combining same tree", first.tree() == second.tree());
+            assertTrue ("combining last wins",
+                        racing.get(7).equals(winner.tree().get(7))
+                        && racing.get(7).startsWith("racer"));
+            assertFalse ("combining put outcome",
+                         racing.putWithOutcome(8, "eight").superseded());
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during combining tests:");
+            System.out.println(e);
+            assertTrue ("combining", false);
+        }
+    }
+
+    // Tests FMapVersions.
+
+    private void versions () {
+        try {
+            FMapVersions<Integer,String> store
+                = new FMapVersions<Integer,String>(100);
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            long bytes1 = 0;
+            for (int i = 0; i < 150; i = i + 1) {
+                t = t.add(i, "version" + i);
+                assertTrue ("versions append", store.append(t, 10 * i) == i);
+                if (i == 0)
+                    bytes1 = store.retainedBytes();
+            }
+            assertTrue ("versions size", store.size() == 100);
+            assertTrue ("versions first", store.firstVersion() == 50);
+            assertTrue ("versions last", store.lastVersion() == 149);
+            assertTrue ("versions get", store.get(60).get(60).equals("version60"));
+            assertTrue ("versions get before", store.get(60).get(61).equals("v61"));
+            assertTrue ("versions asOf", store.versionAsOf(605) == 60);
+            assertTrue ("versions asOf exact", store.versionAsOf(600) == 60);
+            assertTrue ("versions asOf tree", store.asOf(1000000) == t);
+            assertTrue ("versions latest", store.latest() == t);
+            assertTrue ("versions shared bytes",
+                        store.retainedBytes() < 10 * bytes1);
+
+            try {
+                store.get(10);
+                assertTrue ("versions dropped", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("versions dropped", true);
+            }
+            try {
+                store.asOf(0);
+                assertTrue ("versions too early", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("versions too early", true);
+            }
+
+            store.dropBefore(1000);
+            assertTrue ("versions dropBefore", store.firstVersion() == 100);
+            store.dropBefore(1000000);
+            assertTrue ("versions dropBefore keeps latest", store.size() == 1);
+
+            FMapVersions<Integer,String> gaps
+                = new FMapVersions<Integer,String>(10);
+            FMap.FTree<Integer,String> v0 = (FMap.FTree<Integer,String>) bigTree(3);
+            FMap.FTree<Integer,String> v1 = v0.add(3, "3");
+            gaps.append(v0, 10);
+            gaps.append(v1, 20);
+            gaps.dropBefore(15);
+            assertTrue ("versions dropBefore keeps current",
+                        gaps.asOf(15) == v0);
+            assertTrue ("versions dropBefore keeps current size",
+                        gaps.size() == 2);
+            gaps.dropBefore(20);
+            assertTrue ("versions dropBefore at timestamp",
+                        gaps.firstVersion() == 1 && gaps.asOf(20) == v1);
+
+            // appends stamped with the current time never fail, even
+            // when they race, or come after a timestamp in the future
+            final FMapVersions<Integer,String> shared
+                = new FMapVersions<Integer,String>(10);
+            final FMap.FTree<Integer,String> tree = v0;
+            final AtomicInteger failures = new AtomicInteger();
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i = i + 1) {
+                threads[i] = new Thread() {
+                        public void run () {
+                            for (int j = 0; j < 1000; j = j + 1) {
+                                try {
+                                    shared.append(tree);
+                                }
+                                catch (IllegalArgumentException e) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        }
+                    };
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            assertTrue ("versions concurrent append", failures.get() == 0
+                        && shared.lastVersion() == 8000 - 1);
+            long future = System.currentTimeMillis() + 1000000;
+            shared.append(tree, future);
+            shared.append(tree);
+            assertTrue ("versions append after clock step",
+                        shared.asOf(future) == tree
+                        && shared.versionAsOf(future) == 8000 + 1);
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during version tests:");
+            System.out.println(e);
+            assertTrue ("versions", false);
+        }
+    }
+
+    // Tests FMapRef.transact with concurrent transfers between
+    // accounts; the total balance must not change.
+
+    private void transactions () {
+        try {
+            FMap<Integer,Integer> accounts
+                = FMap.emptyMap(usualIntegerComparator);
+            for (int i = 0; i < 10; i = i + 1)
+                accounts = accounts.add(i, 1000);
+            final FMapRef<Integer,Integer> ref
+                = new FMapRef<Integer,Integer>(accounts);
+
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t = t + 1) {
+                final Random r = new Random(t);
+                threads[t] = new Thread() {
+                        public void run () {
+                            for (int i = 0; i < 500; i = i + 1) {
+                                final int from = r.nextInt(10);
+                                final int to = r.nextInt(10);
+                                ref.transact(
+                                    new Function<FMapTransaction<Integer,Integer>,
+                                                 Void>() {
+                                        public Void apply
+                                            (FMapTransaction<Integer,Integer> tx) {
+                                            int a = tx.get(from);
+                                            tx.put(from, a - 1);
+                                            int b = tx.get(to);
+                                            tx.put(to, b + 1);
+                                            return null;
+                                        }
+                                    });
+                            }
+                        }
+                    };
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            int total = 0;
+            for (Integer k : ref.snapshot())
+                total = total + ref.get(k);
+            assertTrue ("transact total", total == 10000);
+
+            Integer moved = ref.transact(
+                new Function<FMapTransaction<Integer,Integer>,Integer>() {
+                    public Integer apply (FMapTransaction<Integer,Integer> tx) {
+                        if (tx.containsKey(42))
+                            return -1;
+                        tx.put(42, tx.get(0));
+                        tx.remove(0);
+                        return tx.get(42);
+                    }
+                });
+            assertTrue ("transact result", moved == ref.get(42));
+            assertFalse ("transact remove", ref.containsKey(0));
+
+            // OffHeapFMap decodes a new value object on every get, so
+            // reads must validate by equals, or this would never commit
+            OffHeapFMap<Integer,Integer> offHeap
+                = OffHeapFMap.emptyMap(usualIntegerComparator,
+                                       Codecs.INTEGER, Codecs.INTEGER);
+            FMapRef<Integer,Integer> offHeapRef
+                = new FMapRef<Integer,Integer>(
+                      offHeap.add(1, 1000).add(2, 2000));
+            final AtomicInteger runs = new AtomicInteger();
+            offHeapRef.transact(
+                new Function<FMapTransaction<Integer,Integer>,Integer>() {
+                    public Integer apply (FMapTransaction<Integer,Integer> tx) {
+                        if (runs.incrementAndGet() > 100)
+                            throw new IllegalStateException("never commits");
+                        tx.put(1, tx.get(1) - 500);
+                        tx.put(2, tx.get(2) + 500);
+                        return null;
+                    }
+                });
+            assertTrue ("transact off-heap runs once", runs.get() == 1);
+            assertTrue ("transact off-heap",
+                        offHeapRef.get(1) == 500 && offHeapRef.get(2) == 2500);
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during transaction tests:");
+            System.out.println(e);
+            assertTrue ("transactions", false);
+        }
+    }
+
+    // Tests diff between versions of a red-black tree.
+
+    private void diffs () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            assertFalse ("diff self", t.diffIterator(t).hasNext());
+
+            FMap.FTree<Integer,String> t2
+                = t.add(5000, "added").add(17, "changed").remove(400);
+            Iterator<FMap.FTree.Change<Integer,String>> it
+                = t.diffIterator(t2);
+            FMap.FTree.Change<Integer,String> c = it.next();
+            assertTrue ("diff changed",
+                        c.kind() == FMap.FTree.Change.Kind.CHANGED
+                        && c.key() == 17 && c.oldValue().equals("v17")
+                        && c.newValue().equals("changed"));
+            c = it.next();
+            assertTrue ("diff removed",
+                        c.kind() == FMap.FTree.Change.Kind.REMOVED
+                        && c.key() == 400);
+            c = it.next();
+            assertTrue ("diff added",
+                        c.kind() == FMap.FTree.Change.Kind.ADDED
+                        && c.key() == 5000);
+            assertFalse ("diff end", it.hasNext());
+            assertTrue ("diff stream", t2.diff(t).count() == 3);
+
+            // compare with a brute-force diff on random versions
+
+            Random r = new Random(1059786856);
+            FMap.FTree<Integer,String> a = t;
+            for (int i = 0; i < 20; i = i + 1) {
+                FMap.FTree<Integer,String> b = a;
+                for (int j = 0; j < i; j = j + 1) {
+                    int k = r.nextInt(1200);
+                    if (r.nextBoolean())
+                        b = b.add(k, "x" + i);
+                    else
+                        b = b.remove(k);
+                }
+                int expected = 0;
+                for (int k = 0; k < 1200; k = k + 1) {
+                    if (a.containsKey(k) != b.containsKey(k))
+                        expected = expected + 1;
+                    else if (a.containsKey(k)
+                             && ! a.get(k).equals(b.get(k)))
+                        expected = expected + 1;
+                }
+                assertTrue ("diff random", a.diff(b).count() == expected);
+                assertTrue ("diff equals", a.equals(b) == (expected == 0));
+                a = b;
+            }
+
+            assertTrue ("diff equals rebuilt",
+                        t.equals(bigTree(1000)));
+            assertFalse ("diff equals other",
+                        t.equals(bigTree(999)));
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during diff tests:");
+            System.out.println(e);
+            assertTrue ("diffs", false);
+        }
+    }
+
+    // Tests content hashes and MerkleSync over a pair of pipes.
+
+    private void merkle () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            FMap.FTree<Integer,String> same
+                = FMap.emptyMap(usualIntegerComparator);
+            for (int i = 999; i >= 0; i = i - 1)
+                same = same.add(i, "v" + i);
+            assertTrue ("contentHash shape-independent",
+                        t.contentHash() == same.contentHash());
+            assertTrue ("rangeHash whole",
+                        t.rangeHash(null, null) == t.contentHash());
+            assertTrue ("rangeHash split",
+                        t.rangeHash(null, 500) + t.rangeHash(500, null)
+                        == t.contentHash());
+            assertTrue ("rangeCount", t.rangeCount(100, 200) == 100);
+            assertTrue ("rank", t.rank(250) == 250);
+            assertTrue ("select", t.select(250) == 250);
+
+            final FMap.FTree<Integer,String> theirs
+                = same.add(17, "changed").remove(400).add(5000, "new");
+            assertFalse ("contentHash differs",
+                         t.contentHash() == theirs.contentHash());
+
+            PipedOutputStream toResponder = new PipedOutputStream();
+            final PipedInputStream responderIn
+                = new PipedInputStream(toResponder);
+            final PipedOutputStream toInitiator = new PipedOutputStream();
+            PipedInputStream initiatorIn = new PipedInputStream(toInitiator);
+            Thread responder = new Thread() {
+                    public void run () {
+                        try {
+                            MerkleSync.respond(theirs,
+                                new DataInputStream(responderIn),
+                                new DataOutputStream(toInitiator),
+                                Codecs.INTEGER, Codecs.STRING);
+                        }
+                        catch (IOException e) {
+                            System.out.println(e);
+                        }
+                    }
+                };
+            responder.start();
+            List<MerkleSync.Range<Integer>> ranges
+                = MerkleSync.differingRanges(t,
+                      new DataInputStream(initiatorIn),
+                      new DataOutputStream(toResponder),
+                      Codecs.INTEGER, Codecs.STRING);
+            responder.join();
+
+            assertTrue ("MerkleSync ranges", ranges.size() == 3);
+            int[] expected = { 17, 400, 5000 };
+            for (int i = 0; i < ranges.size() && i < 3; i = i + 1) {
+                MerkleSync.Range<Integer> r = ranges.get(i);
+                assertTrue ("MerkleSync range",
+                            (r.lo() == null || r.lo() <= expected[i])
+                            && (r.hi() == null || expected[i] < r.hi()));
+            }
+
+            // "Aa" and "BB" share a hashCode, so only a hasher that
+            // looks at the encoded keys tells these apart
+            Comparator<String> strings = new Comparator<String>() {
+                    public int compare (String a, String b) {
+                        return a.compareTo(b);
+                    }
+                };
+            FMap.FTree<String,String> aa
+                = FMap.<String,String>emptyMap(strings).add("Aa", "x");
+            FMap.FTree<String,String> bb
+                = FMap.<String,String>emptyMap(strings).add("BB", "x");
+            CodecHasher<String,String> hasher
+                = new CodecHasher<String,String>(Codecs.STRING, Codecs.STRING);
+            assertTrue ("contentHash collides on hashCode",
+                        aa.contentHash() == bb.contentHash());
+            assertFalse ("CodecHasher contentHash",
+                         aa.contentHash(hasher) == bb.contentHash(hasher));
+            assertTrue ("CodecHasher is stable",
+                        aa.contentHash(hasher) == aa.add("Aa", "x")
+                        .contentHash(new CodecHasher<String,String>(
+                            Codecs.STRING, Codecs.STRING)));
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during Merkle tests:");
+            System.out.println(e);
+            assertTrue ("merkle", false);
+        }
+    }
+
+    // Tests writing and reading snapshot files.
+
+    private void snapshots () {
+        try {
+            Path file = Files.createTempFile("fmap", ".snapshot");
+            try {
+                FMap.FTree<Integer,String> t
+                    = (FMap.FTree<Integer,String>) bigTree(1000);
+                FMapSnapshot.write(t, file, Codecs.INTEGER, Codecs.STRING);
+                FMap.FTree<Integer,String> r
+                    = FMapSnapshot.read(file, usualIntegerComparator,
+                                        Codecs.INTEGER, Codecs.STRING);
+                assertTrue ("snapshot equals", r.equals(t));
+                assertTrue ("snapshot valid", isRedBlack(r));
+                assertTrue ("snapshot get", r.get(123).equals("v123"));
+
+                FMap.FTree<Integer,String> empty
+                    = FMap.emptyMap(usualIntegerComparator);
+                FMapSnapshot.write(empty, file, Codecs.INTEGER, Codecs.STRING);
+                assertTrue ("snapshot empty",
+                            FMapSnapshot.read(file, usualIntegerComparator,
+                                              Codecs.INTEGER, Codecs.STRING)
+                            .isEmpty());
+
+                FMapSnapshot.write(t, file, Codecs.INTEGER, Codecs.STRING);
+                try {
+                    FMapSnapshot.read(file, reverseIntegerComparator,
+                                      Codecs.INTEGER, Codecs.STRING);
+                    assertTrue ("snapshot order", false);
+                }
+                catch (IOException e) {
+                    assertTrue ("snapshot order", true);
+                }
+
+                // a corrupt count must not size the arrays
+                int[] counts = { Integer.MAX_VALUE, -5, 2000 };
+                for (int count : counts) {
+                    FMapSnapshot.write(t, file, Codecs.INTEGER, Codecs.STRING);
+                    ByteBuffer header = ByteBuffer.allocate(4);
+                    header.putInt(0, count);
+                    FileChannel channel
+                        = FileChannel.open(file, StandardOpenOption.WRITE);
+                    channel.write(header, 8);
+                    channel.close();
+                    try {
+                        FMapSnapshot.read(file, usualIntegerComparator,
+                                          Codecs.INTEGER, Codecs.STRING);
+                        assertTrue ("snapshot count", false);
+                    }
+                    catch (IOException e) {
+                        assertTrue ("snapshot count", true);
+                    }
+                }
+
+                Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+                try {
+                    FMapSnapshot.read(file, usualIntegerComparator,
+                                      Codecs.INTEGER, Codecs.STRING);
+                    assertTrue ("snapshot magic", false);
+                }
+                catch (IOException e) {
+                    assertTrue ("snapshot magic", true);
+                }
+            }
+            finally {
+                Files.delete(file);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during snapshot tests:");
+            System.out.println(e);
+            assertTrue ("snapshots", false);
+        }
+    }
+
+    // Tests incremental checkpoint files.
+
+    private void checkpoints () {
+        try {
+            Path file = Files.createTempFile("fmap", ".checkpoints");
+            try {
+                FMapCheckpoints<Integer,String> cp
+                    = new FMapCheckpoints<Integer,String>(file,
+                          usualIntegerComparator,
+                          Codecs.INTEGER, Codecs.STRING);
+                FMap.FTree<Integer,String> t
+                    = (FMap.FTree<Integer,String>) bigTree(1000);
+                FMap.FTree<Integer,String> t2 = t.add(17, "changed");
+                FMap.FTree<Integer,String> t3 = t2.remove(500);
+                FMap.FTree<Integer,String> empty
+                    = FMap.emptyMap(usualIntegerComparator);
+
+                assertTrue ("checkpoint 0", cp.checkpoint(t) == 0);
+                long full = cp.lastCheckpointBytes();
+                assertTrue ("checkpoint 1", cp.checkpoint(t2) == 1);
+                assertTrue ("checkpoint incremental",
+                            cp.lastCheckpointBytes() * 20 < full);
+                cp.checkpoint(t3);
+                cp.checkpoint(t);
+                assertTrue ("checkpoint shared",
+                            cp.lastCheckpointBytes() < 20);
+                cp.checkpoint(empty);
+                cp.close();
+
+                // simulate a crash in the middle of a checkpoint
+                Files.write(file, new byte[] { 1, 0, 0 },
+                            StandardOpenOption.APPEND);
+
+                cp = new FMapCheckpoints<Integer,String>(file,
+                         usualIntegerComparator,
+                         Codecs.INTEGER, Codecs.STRING);
+                assertTrue ("checkpoints reopened", cp.checkpoints() == 5);
+                FMap.FTree<Integer,String> r = cp.load(0);
+                assertTrue ("checkpoint load 0", r.equals(t));
+                assertTrue ("checkpoint valid", isRedBlack(r));
+                assertTrue ("checkpoint load 1", cp.load(1).equals(t2));
+                assertTrue ("checkpoint load 2", cp.load(2).equals(t3));
+                assertTrue ("checkpoint load 3", cp.load(3).equals(t));
+                assertTrue ("checkpoint load 4", cp.load(4).isEmpty());
+
+                FMap.FTree<Integer,String> r2 = r.add(2000, "new");
+                cp.checkpoint(r2);
+                assertTrue ("checkpoint after load",
+                            cp.lastCheckpointBytes() * 20 < full);
+                assertTrue ("checkpoint load 5", cp.load(5).equals(r2));
+
+                // a checkpoint that fails partway must not leave offsets
+                // behind for records that never reached the file
+                StringBuilder huge = new StringBuilder();
+                for (int i = 0; i < 70000; i = i + 1)
+                    huge.append('x');
+                FMap.FTree<Integer,String> fresh
+                    = ((FMap.FTree<Integer,String>) bigTree(100))
+                    .add(1000, huge.toString());
+                try {
+                    cp.checkpoint(fresh);
+                    assertTrue ("checkpoint too large (exception)", false);
+                }
+                catch (IOException e) {
+                    assertTrue ("checkpoint too large (exception)", true);
+                }
+                FMap.FTree<Integer,String> fresh2 = fresh.remove(1000);
+                assertTrue ("checkpoint after failure",
+                            cp.checkpoint(fresh2) == 6);
+                assertTrue ("checkpoint load after failure",
+                            cp.load(6).equals(fresh2));
+                cp.close();
+
+                // a crash can also leave zeros after the last checkpoint
+                Files.write(file, new byte[] { 0, 0, 0, 0 },
+                            StandardOpenOption.APPEND);
+                cp = new FMapCheckpoints<Integer,String>(file,
+                         usualIntegerComparator,
+                         Codecs.INTEGER, Codecs.STRING);
+                assertTrue ("checkpoints after zeros", cp.checkpoints() == 7
+                            && cp.load(6).equals(fresh2));
+                cp.checkpoint(t2);
+                assertTrue ("checkpoint after zeros", cp.load(7).equals(t2));
+                cp.close();
+            }
+            finally {
+                Files.delete(file);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during checkpoint tests:");
+            System.out.println(e);
+            assertTrue ("checkpoints", false);
+        }
+    }
+
+    // Tests memory-mapped read-only maps.
+
+    private void mappedMaps () {
+        try {
+            Path file = Files.createTempFile("fmap", ".mapped");
+            try {
+                FMap.FTree<Integer,String> t
+                    = (FMap.FTree<Integer,String>) bigTree(1000);
+                MappedFMap.write(t, file, Codecs.INTEGER, Codecs.STRING);
+                MappedFMap<Integer,String> m
+                    = MappedFMap.open(file, usualIntegerComparator,
+                                      Codecs.INTEGER, Codecs.STRING);
+                assertTrue ("mapped size", m.size() == 1000);
+                assertTrue ("mapped get", m.get(123).equals("v123"));
+                assertTrue ("mapped get first", m.get(0).equals("v0"));
+                assertTrue ("mapped get last", m.get(999).equals("v999"));
+                assertTrue ("mapped containsKey", m.containsKey(500));
+                assertFalse ("mapped containsKey missing",
+                             m.containsKey(1000));
+                assertTrue ("mapped equals", m.equals(t) && t.equals(m));
+                assertTrue ("mapped hashCode", m.hashCode() == t.hashCode());
+
+                int expected = 0;
+                boolean ordered = true;
+                for (Integer k : m) {
+                    ordered = ordered && k == expected;
+                    expected = expected + 1;
+                }
+                assertTrue ("mapped iterator", ordered && expected == 1000);
+
+                FMap<Integer,String> visited = m.accept(new CountingVisitor("!"));
+                assertTrue ("mapped accept",
+                            visited.equals(t.accept(new CountingVisitor("!"))));
+                assertTrue ("mapped add", m.add(5000, "x").size() == 1001);
+
+                try {
+                    m.get(-1);
+                    assertTrue ("mapped get (exception)", false);
+                }
+                catch (IllegalArgumentException e) {
+                    assertTrue ("mapped get (exception)", true);
+                }
+
+                // with 16-byte heap regions most values cross a region
+                MappedFMap<Integer,String> regions
+                    = MappedFMap.open(file, usualIntegerComparator,
+                                      Codecs.INTEGER, Codecs.STRING, 4);
+                assertTrue ("mapped regions", regions.heap.length > 100);
+                assertTrue ("mapped regions equals",
+                            regions.equals(t) && t.equals(regions));
+
+                MappedFMap.write(FMap.<Integer,String>emptyMap(
+                                     usualIntegerComparator),
+                                 file, Codecs.INTEGER, Codecs.STRING);
+                assertTrue ("mapped empty",
+                            MappedFMap.open(file, usualIntegerComparator,
+                                            Codecs.INTEGER, Codecs.STRING)
+                            .isEmpty());
+            }
+            finally {
+                Files.delete(file);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during mapped map tests:");
+            System.out.println(e);
+            assertTrue ("mappedMaps", false);
+        }
+    }
+
+    // Tests frozen Eytzinger-ordered maps.
+
+    private void frozenMaps () {
+        try {
+            for (int n = 0; n <= 40; n = n + 1) {
+                FMap<Integer,String> f = FMap.emptyMap(usualIntegerComparator);
+                for (int i = 0; i < n; i = i + 1)
+                    f = f.add(2 * i, "v" + i);
+                FMap.FTree<Integer,String> t = (FMap.FTree<Integer,String>) f;
+                FrozenFMap<Integer,String> z = t.freeze();
+                boolean ok = z.size() == n && z.equals(t) && t.equals(z);
+                for (int k = -1; k <= 2 * n; k = k + 1) {
+                    ok = ok && z.containsKey(k) == t.containsKey(k)
+                        && z.rank(k) == t.rank(k);
+                    if (t.containsKey(k))
+                        ok = ok && z.get(k).equals(t.get(k));
+                }
+                int expected = 0;
+                for (Integer k : z) {
+                    ok = ok && k == expected;
+                    expected = expected + 2;
+                }
+                ok = ok && expected == 2 * n;
+                assertTrue ("frozen " + n, ok);
+            }
+
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            FrozenFMap<Integer,String> z = t.freeze();
+            assertTrue ("frozen get", z.get(777).equals("v777"));
+            assertTrue ("frozen hashCode", z.hashCode() == t.hashCode());
+            assertTrue ("frozen thaw", z.thaw().equals(t));
+            assertTrue ("frozen thaw red-black", isRedBlack(z.thaw()));
+            assertTrue ("frozen accept",
+                        z.accept(new CountingVisitor("!"))
+                        .equals(t.accept(new CountingVisitor("!"))));
+            assertTrue ("frozen add", z.add(5000, "x").size() == 1001);
+            assertTrue ("frozen unchanged", z.size() == 1000);
+
+            try {
+                z.get(1000);
+                assertTrue ("frozen get (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("frozen get (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during frozen map tests:");
+            System.out.println(e);
+            assertTrue ("frozenMaps", false);
+        }
+    }
+
+    // Tests frozen maps with primitive keys.
+
+    private void frozenLongMaps () {
+        try {
+            Comparator<Long> longs = new Comparator<Long>() {
+                    public int compare (Long m, Long n) {
+                        return m.compareTo(n);
+                    }
+                };
+            for (int n = 0; n <= 100; n = n + 1) {
+                FMap<Long,String> f = FMap.emptyMap(longs);
+                for (int i = 0; i < n; i = i + 1)
+                    f = f.add(3L * i - 50, "v" + i);
+                if (n > 90)
+                    f = f.add(Long.MAX_VALUE, "max").add(Long.MIN_VALUE, "min");
+                FMap.FTree<Long,String> t = (FMap.FTree<Long,String>) f;
+                FrozenLongFMap<Long,String> z = t.freeze(LongKeys.LONG);
+                boolean ok = z.size() == t.size() && z.equals(t) && t.equals(z);
+                for (long k = -52; k <= 3 * n - 48; k = k + 1) {
+                    ok = ok && z.containsKey(k) == t.containsKey(k)
+                        && z.containsLong(k) == t.containsKey(k)
+                        && z.rank(k) == t.rank(k);
+                    if (t.containsKey(k))
+                        ok = ok && z.getLong(k).equals(t.get(k));
+                }
+                for (long k : new long[] { Long.MIN_VALUE, Long.MAX_VALUE })
+                    ok = ok && z.containsKey(k) == t.containsKey(k)
+                        && z.rank(k) == t.rank(k);
+                for (int i = 0; i < t.size(); i = i + 1)
+                    ok = ok && z.select(i).equals(t.select(i));
+                assertTrue ("frozen long " + n, ok);
+            }
+
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(1000);
+            FrozenLongFMap<Integer,String> z = t.freeze(LongKeys.INTEGER);
+            assertTrue ("frozen int get", z.get(777).equals("v777"));
+            assertTrue ("frozen int equals", z.equals(t) && t.equals(z));
+            assertTrue ("frozen int thaw", z.thaw().equals(t));
+            assertTrue ("frozen int accept",
+                        z.accept(new CountingVisitor("!"))
+                        .equals(t.accept(new CountingVisitor("!"))));
+
+            try {
+                z.getLong(1000);
+                assertTrue ("frozen int get (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("frozen int get (exception)", true);
+            }
+
+            FMap.FTree<Integer,String> r
+                = FMap.<Integer,String>emptyMap(reverseIntegerComparator)
+                .add(1, "a").add(2, "b");
+            try {
+                r.freeze(LongKeys.INTEGER);
+                assertTrue ("frozen int order (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("frozen int order (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during frozen long map tests:");
+            System.out.println(e);
+            assertTrue ("frozenLongMaps", false);
+        }
+    }
+
+    // Returns the black-height of the off-heap subtree at t, or -1 if
+    // it breaks a red-black invariant.
+
+    private int offHeapBlackHeight (OffHeapFMap.Arena<Integer,Integer> a,
+                                    int t) {
+        if (t == 0)
+            return 0;
+        if (a.isRed(t) && (a.isRed(a.left(t)) || a.isRed(a.right(t))))
+            return -1;
+        int l = offHeapBlackHeight(a, a.left(t));
+        int r = offHeapBlackHeight(a, a.right(t));
+        if (l < 0 || l != r)
+            return -1;
+        return l + (a.isRed(t) ? 0 : 1);
+    }
+
+    // Tests off-heap persistent red-black trees.
+
+    private void offHeapMaps () {
+        try {
+            OffHeapFMap<Integer,Integer> m
+                = OffHeapFMap.emptyMap(usualIntegerComparator,
+                                       Codecs.INTEGER, Codecs.INTEGER);
+            FMap<Integer,Integer> f = FMap.emptyMap(usualIntegerComparator);
+            assertTrue ("off-heap empty", m.isEmpty() && m.equals(f));
+
+            Random rng = new Random(17);
+            List<OffHeapFMap<Integer,Integer>> versions
+                = new ArrayList<OffHeapFMap<Integer,Integer>>();
+            List<FMap<Integer,Integer>> expected
+                = new ArrayList<FMap<Integer,Integer>>();
+            boolean ok = true;
+            for (int i = 0; i < 3000; i = i + 1) {
+                int k = rng.nextInt(500);
+                if (rng.nextInt(3) == 0) {
+                    m = m.remove(k);
+                    f = f.remove(k);
+                }
+                else {
+                    m = m.add(k, i);
+                    f = f.add(k, i);
+                }
+                ok = ok && m.size() == f.size()
+                    && offHeapBlackHeight(m.arena(), m.root) >= 0;
+                if (i % 300 == 0) {
+                    versions.add(m);
+                    expected.add(f);
+                }
+            }
+            assertTrue ("off-heap red-black", ok);
+            assertTrue ("off-heap equals", m.equals(f) && f.equals(m));
+            ok = true;
+            for (int i = 0; i < versions.size(); i = i + 1)
+                ok = ok && versions.get(i).equals(expected.get(i));
+            assertTrue ("off-heap persistence", ok);
+
+            int prev = -1;
+            ok = true;
+            for (Integer k : m) {
+                ok = ok && k > prev;
+                prev = k;
+            }
+            assertTrue ("off-heap iterator", ok);
+            assertTrue ("off-heap remove missing", m.remove(-1) == m);
+
+            FMap<Integer,Integer> doubled = m.accept(new Visitor<Integer,Integer>() {
+                    public Integer visit (Integer k, Integer v) {
+                        return 2 * v;
+                    }
+                });
+            Integer k0 = m.iterator().next();
+            assertTrue ("off-heap accept",
+                        doubled.get(k0) == 2 * m.get(k0)
+                        && doubled.size() == m.size());
+
+            try {
+                m.get(-1);
+                assertTrue ("off-heap get (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("off-heap get (exception)", true);
+            }
+
+            Object[] ks = new Object[1000];
+            Object[] vs = new Object[1000];
+            for (int i = 0; i < 1000; i = i + 1) {
+                ks[i] = i;
+                vs[i] = -i;
+            }
+            FMap<Integer,Integer> g
+                = FMap.FTree.buildSorted(usualIntegerComparator, ks, vs, 0, 1000);
+            OffHeapFMap<Integer,Integer> copied
+                = OffHeapFMap.copyOf((FMap.FTree<Integer,Integer>) g,
+                                     Codecs.INTEGER, Codecs.INTEGER);
+            assertTrue ("off-heap copyOf", copied.equals(g)
+                        && copied.arena().nodes() == 1000
+                        && offHeapBlackHeight(copied.arena(), copied.root) >= 0);
+
+            OffHeapFMap.Arena<Integer,Integer> old = m.arena();
+            List<OffHeapFMap<Integer,Integer>> live
+                = new ArrayList<OffHeapFMap<Integer,Integer>>();
+            live.add(m);
+            live.add(m.add(1000, 1));
+            List<OffHeapFMap<Integer,Integer>> compacted
+                = OffHeapFMap.compact(live);
+            old.close();
+            OffHeapFMap<Integer,Integer> c0 = compacted.get(0);
+            OffHeapFMap<Integer,Integer> c1 = compacted.get(1);
+            assertTrue ("off-heap compact", c0.equals(f)
+                        && c1.equals(f.add(1000, 1)));
+            assertTrue ("off-heap compact shares",
+                        c0.arena().nodes() < m.size() + 10
+                        && c0.arena().nodes() < old.nodes());
+            assertTrue ("off-heap compact red-black",
+                        offHeapBlackHeight(c1.arena(), c1.root) >= 0);
+
+            try {
+                m.get(k0);
+                assertTrue ("off-heap closed (exception)", false);
+            }
+            catch (IllegalStateException e) {
+                assertTrue ("off-heap closed (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during off-heap map tests:");
+            System.out.println(e);
+            assertTrue ("offHeapMaps", false);
+        }
+    }
+
+    // Tests Bloom filters in front of maps.
+
+    private void bloomFilters () {
+        try {
+            FMap.FTree<Integer,String> t
+                = (FMap.FTree<Integer,String>) bigTree(10000);
+            FilteredFMap<Integer,String> f = t.withBloomFilter(0.01);
+            boolean ok = f.size() == 10000;
+            for (int k = 0; k < 10000; k = k + 1)
+                ok = ok && f.containsKey(k) && f.get(k).equals("v" + k);
+            assertTrue ("bloom hits", ok);
+
+            int falsePositives = 0;
+            ok = true;
+            for (int k = 10000; k < 110000; k = k + 1) {
+                ok = ok && !f.containsKey(k);
+                if (f.filter().mightContain(k))
+                    falsePositives = falsePositives + 1;
+            }
+            assertTrue ("bloom misses", ok);
+            assertTrue ("bloom false positive rate", falsePositives < 2000);
+            assertTrue ("bloom tighter rate",
+                        t.withBloomFilter(0.001).filter().bytes()
+                        > f.filter().bytes());
+
+            assertTrue ("bloom equals", f.equals(t) && t.equals(f));
+            assertTrue ("bloom add", f.add(-1, "x").containsKey(-1)
+                        && f.add(-1, "x").size() == 10001);
+            assertTrue ("bloom remove", !f.remove(5).containsKey(5));
+            assertTrue ("bloom old maps",
+                        bigTree(10).accept(new CountingVisitor("!"))
+                        .withBloomFilter(0.05).containsKey(3));
+            assertFalse ("bloom empty",
+                         FMap.<Integer,String>emptyMap(usualIntegerComparator)
+                         .withBloomFilter(0.01).containsKey(3));
+
+            try {
+                f.get(-5);
+                assertTrue ("bloom get (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("bloom get (exception)", true);
+            }
+            try {
+                t.withBloomFilter(1.0);
+                assertTrue ("bloom rate (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("bloom rate (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during Bloom filter tests:");
+            System.out.println(e);
+            assertTrue ("bloomFilters", false);
+        }
+    }
+
+    // Tests sorted maps with a hash index.
+
+    private void hashedMaps () {
+        try {
+            HashedFMap<Integer,Integer> h
+                = FMap.emptyHashedMap(usualIntegerComparator);
+            FMap<Integer,Integer> f = FMap.emptyMap(usualIntegerComparator);
+            assertTrue ("hashed empty", h.isEmpty() && !h.containsKey(1));
+            Random rng = new Random(5);
+            HashedFMap<Integer,Integer> old = h;
+            boolean ok = true;
+            for (int i = 0; i < 5000; i = i + 1) {
+                int k = rng.nextInt(2000) - 1000;
+                if (rng.nextInt(3) == 0) {
+                    h = h.remove(k);
+                    f = f.remove(k);
+                }
+                else {
+                    h = h.add(k, i);
+                    f = f.add(k, i);
+                }
+                ok = ok && h.size() == f.size()
+                    && h.containsKey(k) == f.containsKey(k);
+                if (i == 2500)
+                    old = h;
+            }
+            assertTrue ("hashed updates", ok);
+            assertTrue ("hashed equals", h.equals(f) && f.equals(h));
+            ok = true;
+            for (int k = -1000; k < 1000; k = k + 1) {
+                ok = ok && h.containsKey(k) == f.containsKey(k);
+                if (f.containsKey(k))
+                    ok = ok && h.get(k).equals(f.get(k));
+            }
+            assertTrue ("hashed gets", ok);
+            assertTrue ("hashed persistence", old.size() != h.size()
+                        || !old.equals(h));
+
+            int prev = Integer.MIN_VALUE;
+            ok = true;
+            for (Integer k : h) {
+                ok = ok && k > prev;
+                prev = k;
+            }
+            assertTrue ("hashed iterator", ok);
+            assertTrue ("hashed sorted", h.sorted().equals(f)
+                        && h.sorted().rank(0) == ((FMap.FTree<Integer,Integer>) f).rank(0));
+
+            HashedFMap<Integer,Integer> doubled
+                = h.accept(new Visitor<Integer,Integer>() {
+                        public Integer visit (Integer k, Integer v) {
+                            return 2 * v;
+                        }
+                    });
+            Integer k0 = h.iterator().next();
+            assertTrue ("hashed accept", doubled.get(k0) == 2 * h.get(k0)
+                        && doubled.size() == h.size());
+
+            // "Aa" and "BB" have the same hashCode, and so do all
+            // strings made of them with the same length
+            Comparator<String> strings = new Comparator<String>() {
+                    public int compare (String s, String t) {
+                        return s.compareTo(t);
+                    }
+                };
+            String[] same = { "AaAa", "AaBB", "BBAa", "BBBB", "Aa", "BB" };
+            HashedFMap<String,Integer> c = FMap.emptyHashedMap(strings);
+            for (int i = 0; i < same.length; i = i + 1)
+                c = c.add(same[i], i).add("x" + i, -i);
+            ok = c.size() == 2 * same.length;
+            for (int i = 0; i < same.length; i = i + 1)
+                ok = ok && c.get(same[i]) == i && c.get("x" + i) == -i;
+            assertTrue ("hashed collisions", ok);
+            c = c.remove("AaBB").remove("BB");
+            assertTrue ("hashed collision remove",
+                        c.size() == 10 && !c.containsKey("AaBB")
+                        && c.containsKey("BBAa") && !c.containsKey("BB")
+                        && c.containsKey("Aa"));
+            for (int i = 0; i < same.length; i = i + 1)
+                c = c.remove(same[i]).remove("x" + i);
+            assertTrue ("hashed remove all", c.isEmpty() && !c.containsKey("Aa"));
+
+            try {
+                h.get(5000);
+                assertTrue ("hashed get (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("hashed get (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during hashed map tests:");
+            System.out.println(e);
+            assertTrue ("hashedMaps", false);
+        }
+    }
+
+    // Returns the height of the B-tree node n, or -1 if its leaves are
+    // at different depths or a node has too many or too few entries.
+
+    private int bTreeHeight (BTreeFMap<Integer,Integer> m,
+                             BTreeFMap.BNode n, boolean isRoot) {
+        int len = n.keys.length;
+        if (len > m.maxKeys() || (!isRoot && len < m.minKeys()) || len == 0)
+            return -1;
+        if (n.isLeaf())
+            return 1;
+        if (n.children.length != len + 1)
+            return -1;
+        int h = bTreeHeight(m, n.children[0], false);
+        for (int i = 1; i <= len; i = i + 1)
+            if (bTreeHeight(m, n.children[i], false) != h)
+                return -1;
+        return h < 0 ? -1 : h + 1;
+    }
+
+    // Tests persistent B-trees.
+
+    private void bTreeMaps () {
+        try {
+            int[] fanouts = { 3, 4, 5, 16, 32 };
+            for (int fanout : fanouts) {
+                BTreeFMap<Integer,Integer> b
+                    = FMap.emptyBTreeMap(usualIntegerComparator, fanout);
+                FMap<Integer,Integer> f = FMap.emptyMap(usualIntegerComparator);
+                Random rng = new Random(fanout);
+                List<BTreeFMap<Integer,Integer>> versions
+                    = new ArrayList<BTreeFMap<Integer,Integer>>();
+                List<FMap<Integer,Integer>> expected
+                    = new ArrayList<FMap<Integer,Integer>>();
+                boolean ok = true;
+                for (int i = 0; i < 4000; i = i + 1) {
+                    int k = rng.nextInt(1000);
+                    if (rng.nextInt(5) < 2) {
+                        b = b.remove(k);
+                        f = f.remove(k);
+                    }
+                    else {
+                        b = b.add(k, i);
+                        f = f.add(k, i);
+                    }
+                    ok = ok && b.size() == f.size()
+                        && (b.isEmpty() || bTreeHeight(b, b.root, true) > 0);
+                    if (i % 500 == 0) {
+                        versions.add(b);
+                        expected.add(f);
+                    }
+                }
+                assertTrue ("btree invariants " + fanout, ok);
+                assertTrue ("btree equals " + fanout,
+                            b.equals(f) && f.equals(b));
+                ok = true;
+                for (int i = 0; i < versions.size(); i = i + 1)
+                    ok = ok && versions.get(i).equals(expected.get(i));
+                assertTrue ("btree persistence " + fanout, ok);
+
+                int prev = -1;
+                int count = 0;
+                ok = true;
+                for (Integer k : b) {
+                    ok = ok && k > prev && b.get(k).equals(f.get(k));
+                    prev = k;
+                    count = count + 1;
+                }
+                assertTrue ("btree iterator " + fanout,
+                            ok && count == b.size());
+
+                while (!b.isEmpty())
+                    b = b.remove(b.iterator().next());
+                assertTrue ("btree remove all " + fanout,
+                            b.size() == 0 && !b.iterator().hasNext());
+            }
+
+            BTreeFMap<Integer,Integer> b
+                = FMap.emptyBTreeMap(usualIntegerComparator);
+            for (int i = 0; i < 100000; i = i + 1)
+                b = b.add(i, i);
+            assertTrue ("btree height", b.height() <= 4);
+            assertTrue ("btree remove missing", b.remove(-1) == b);
+            assertTrue ("btree add same", b.add(5, b.get(5)).root == b.root);
+
+            BTreeFMap<Integer,Integer> same
+                = b.accept(new Visitor<Integer,Integer>() {
+                        public Integer visit (Integer k, Integer v) {
+                            return v;
+                        }
+                    });
+            assertTrue ("btree accept shares", same == b);
+            BTreeFMap<Integer,Integer> doubled
+                = b.accept(new Visitor<Integer,Integer>() {
+                        public Integer visit (Integer k, Integer v) {
+                            return 2 * v;
+                        }
+                    });
+            assertTrue ("btree accept", doubled.get(777) == 1554
+                        && doubled.size() == 100000);
+
+            try {
+                b.get(-1);
+                assertTrue ("btree get (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("btree get (exception)", true);
+            }
+            try {
+                FMap.emptyBTreeMap(usualIntegerComparator, 2);
+                assertTrue ("btree fanout (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("btree fanout (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during B-tree tests:");
+            System.out.println(e);
+            assertTrue ("bTreeMaps", false);
+        }
+    }
+
+    // Tests array-backed small maps.
+
+    private void smallMaps () {
+        try {
+            Random rng = new Random(3);
+            for (int trial = 0; trial < 20; trial = trial + 1) {
+                FMap<Integer,Integer> m
+                    = FMap.emptySmallMap(usualIntegerComparator);
+                FMap<Integer,Integer> f = FMap.emptyMap(usualIntegerComparator);
+                boolean ok = m.isEmpty();
+                for (int i = 0; i < 40; i = i + 1) {
+                    int k = rng.nextInt(20);
+                    if (rng.nextInt(4) == 0) {
+                        m = m.remove(k);
+                        f = f.remove(k);
+                    }
+                    else {
+                        m = m.add(k, i);
+                        f = f.add(k, i);
+                    }
+                    ok = ok && m.size() == f.size() && m.equals(f)
+                        && f.equals(m) && m.hashCode() == f.hashCode();
+                    int prev = -1;
+                    for (Integer key : m) {
+                        ok = ok && key > prev;
+                        prev = key;
+                    }
+                }
+                assertTrue ("small " + trial, ok);
+            }
+
+            FMap<Integer,Integer> m = FMap.emptySmallMap(usualIntegerComparator);
+            for (int i = 8; i > 0; i = i - 1)
+                m = m.add(i, i);
+            assertTrue ("small stays small", m instanceof SmallFMap);
+            assertTrue ("small get", m.get(3) == 3 && !m.containsKey(9));
+            assertTrue ("small replace", m.add(3, 30).get(3) == 30
+                        && m.add(3, 30).size() == 8 && m.get(3) == 3);
+            assertTrue ("small same value", m.add(3, m.get(3)) == m);
+            FMap<Integer,Integer> big = m.add(0, 0);
+            assertTrue ("small upgrades", big instanceof FMap.FTree
+                        && big.size() == 9 && big.get(0) == 0);
+            assertTrue ("small upgrade red-black",
+                        ((FMap.FTree<Integer,Integer>) big).diagnostics()
+                        .redViolations() == 0);
+
+            assertTrue ("small accept shares",
+                        m.accept(new Visitor<Integer,Integer>() {
+                                public Integer visit (Integer k, Integer v) {
+                                    return v;
+                                }
+                            }) == m);
+            assertTrue ("small accept",
+                        m.accept(new Visitor<Integer,Integer>() {
+                                public Integer visit (Integer k, Integer v) {
+                                    return -v;
+                                }
+                            }).get(5) == -5);
+            assertTrue ("small remove missing", m.remove(42) == m);
+
+            try {
+                m.get(42);
+                assertTrue ("small get (exception)", false);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue ("small get (exception)", true);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Exception thrown during small map tests:");
+            System.out.println(e);
+            assertTrue ("smallMaps", false);
+        }
+    }
+
     // Probabilistic test for distribution of hash codes.
 
     private void probabilisticTests () {